@@ -18,7 +18,23 @@ public class FileSystem {
     public static final String APPEND = "a";
     public static final int BYTES = 512;
     public static final String BERROR = "Error in program";
-
+    //most blocks moved by one vectored disk request
+    public static final int MAX_VECTOR = 64;
+    //read-ahead window of a sequential reader, first and largest
+    public static final int MIN_READ_AHEAD = 2;
+    public static final int MAX_READ_AHEAD = 32;
+    //access hints for fadvise, kept per file table entry
+    public static final int ADVICE_NORMAL = 0;     //read-ahead as detected
+    public static final int ADVICE_SEQUENTIAL = 1; //full read-ahead at once
+    public static final int ADVICE_RANDOM = 2;     //no read-ahead
+    public static final int ADVICE_NOREUSE = 3;    //read once, cache it last
+    public static final int ADVICE_WILLNEED = 4;   //prefetch a range now
+
+
+    //block I/O goes through the kernel's block cache unless ThreadOS
+    //was booted with -Dthreados.fs.cache=off, which uses the raw disk
+    static final boolean CACHED =
+            !"off".equalsIgnoreCase(System.getProperty("threados.fs.cache"));
 
     //seek constants
     private final int SEEK_SET = 0;
@@ -57,6 +73,8 @@ public class FileSystem {
     }
 
     void sync() {
+        //writes back the index blocks of the files still open
+        this.fileT.sync();
         //opens root for writing
         FileTableEntry openFile = this.open(ROOT, WRITE);
         //gets this directory in byte form array
@@ -68,6 +86,49 @@ public class FileSystem {
         this.supBlock.sync();
     }
 
+    //block I/O for the file system layer, cached or raw (see CACHED)
+    static int readBlock(int blockNumber, byte[] buffer) {
+        return CACHED ? SysLib.cread(blockNumber, buffer)
+                      : SysLib.rawread(blockNumber, buffer);
+    }
+
+    static int writeBlock(int blockNumber, byte[] buffer) {
+        return CACHED ? SysLib.cwrite(blockNumber, buffer)
+                      : SysLib.rawwrite(blockNumber, buffer);
+    }
+
+    static int readBlocks(int[] blockNumbers, byte[] buffer) {
+        return CACHED ? SysLib.creadv(blockNumbers, buffer)
+                      : SysLib.rawreadv(blockNumbers, buffer);
+    }
+
+    //reads length bytes of the blocks, from skip bytes into the first, to
+    //buffer at offset. Cached, the kernel copies them straight from its
+    //pages; raw, a whole-block read from the start of buffer lands there
+    //directly and anything else goes through a pooled block array.
+    //noReuse blocks are cached as the next to be evicted.
+    static int readRange(int[] blockNumbers, int skip, byte[] buffer,
+                         int offset, int length, boolean noReuse) {
+        if (CACHED) {
+            return SysLib.creadv(blockNumbers, skip, buffer, offset, length, noReuse);
+        }
+        if (skip == 0 && offset == 0 && length == blockNumbers.length * BYTES) {
+            return SysLib.rawreadv(blockNumbers, buffer);
+        }
+        byte[] data = BlockPool.get(blockNumbers.length);
+        int result = SysLib.rawreadv(blockNumbers, data);
+        if (result != -1) {
+            System.arraycopy(data, skip, buffer, offset, length);
+        }
+        BlockPool.put(data);
+        return result;
+    }
+
+    static int writeBlocks(int[] blockNumbers, byte[] buffer) {
+        return CACHED ? SysLib.cwritev(blockNumbers, buffer)
+                      : SysLib.rawwritev(blockNumbers, buffer);
+    }
+
     //does the file table have any entries
     private boolean isEmpty() {
         return this.fileT.fempty();
@@ -100,22 +161,28 @@ public class FileSystem {
 
     //closes given file table entry
     boolean close(FileTableEntry fEntry) {
-        synchronized(fEntry) {
+        fEntry.lock.lock();
+        try {
             //decrement count
             --fEntry.count;
             if (fEntry.count > 0) {
                 //return true if the count is already less than zero
                 return true;
             }
+        } finally {
+            fEntry.lock.unlock();
         }
 
         return this.fileT.ffree(fEntry);
     }
 
     int fsize(FileTableEntry fEntry) {
-        synchronized(fEntry) {
+        fEntry.lock.lock();
+        try {
             //how many inodes in the fEntry
             return fEntry.inode.length;
+        } finally {
+            fEntry.lock.unlock();
         }
     }
 
@@ -125,29 +192,29 @@ public class FileSystem {
         if (fEntry.mode != APPEND && fEntry.mode != WRITE) {
             int destPos = 0;
             int bufferLen = buffer.length;
-            synchronized(fEntry) {
+            fEntry.lock.lock();
+            try {
+                int start = fEntry.seekPtr;
                 //ensure buffer can store information and the entry points to the proper thing
                 while(bufferLen > 0 && fEntry.seekPtr < this.fsize(fEntry)) {
-                    //target block found
-                    int targetBlock = fEntry.inode.findTargetBlock(fEntry.seekPtr);
-                    if (targetBlock == -1) {
+                    //bytes left to read in this request and the file
+                    int remaining = Math.min(bufferLen, this.fsize(fEntry) - fEntry.seekPtr);
+                    //target blocks found, up to the first hole
+                    int[] blocks = this.findTargetBlocks(fEntry, remaining);
+                    if (blocks.length == 0) {
                         break;
                     }
 
-                    //data to be read into
-                    byte[] freshArr = new byte[512];
-                    //syslib system call
-                    SysLib.rawread(targetBlock, freshArr);
                     //find the start location to read from FileTableEntry
-                    int startPos = fEntry.seekPtr % 512;
-                    //take mode, offset
-                    int offset = BYTES - startPos;
-                    //calculate difference
-                    int difference = this.fsize(fEntry) - fEntry.seekPtr;
+                    int startPos = fEntry.seekPtr % BYTES;
                     //find minimum values
-                    int len = Math.min(Math.min(offset, bufferLen), difference);
-                    //copy read portion
-                    System.arraycopy(freshArr, startPos, buffer, destPos, len);
+                    int len = Math.min(blocks.length * BYTES - startPos, remaining);
+                    //one syslib system call for the whole run of blocks,
+                    //straight into the caller's buffer
+                    if (readRange(blocks, startPos, buffer, destPos, len,
+                                  fEntry.advice == ADVICE_NOREUSE) == -1) {
+                        break;
+                    }
                     //update seek ptr LOL
                     fEntry.seekPtr += len;
                     //update read locs
@@ -155,13 +222,110 @@ public class FileSystem {
                     bufferLen -= len;
                 }
 
+                readAhead(fEntry, start);
                 return destPos;
-            } //end SYNCRONIZED
+            } finally {
+                fEntry.lock.unlock();
+            }
         } else {
             return -1;
         }
     }
 
+    //read-ahead for sequential readers: a read that starts where the last
+    //one on this entry ended doubles the entry's window, up to
+    //MAX_READ_AHEAD blocks, and any other read closes it. The window's
+    //blocks from the seek pointer on that were not asked for yet go to the
+    //cache to be loaded in the background, so the next reads find them there.
+    //An ADVICE_SEQUENTIAL entry always has the largest window and an
+    //ADVICE_RANDOM one none.
+    private void readAhead(FileTableEntry fEntry, int start) {
+        if (!CACHED) {
+            return;
+        }
+        if (fEntry.advice == ADVICE_RANDOM) {
+            fEntry.readAhead = 0;
+        } else if (fEntry.advice == ADVICE_SEQUENTIAL) {
+            fEntry.readAhead = MAX_READ_AHEAD;
+            if (start != fEntry.nextRead) {
+                fEntry.readAheadEnd = 0;
+            }
+        } else if (start != fEntry.nextRead) {
+            //random access
+            fEntry.readAhead = 0;
+            fEntry.readAheadEnd = 0;
+        } else if (fEntry.readAhead == 0) {
+            fEntry.readAhead = MIN_READ_AHEAD;
+        } else {
+            fEntry.readAhead = Math.min(fEntry.readAhead * 2, MAX_READ_AHEAD);
+        }
+        fEntry.nextRead = fEntry.seekPtr;
+        if (fEntry.readAhead == 0) {
+            return;
+        }
+
+        //the block under the seek pointer may be only partly read
+        int first = Math.max(fEntry.seekPtr / BYTES, fEntry.readAheadEnd);
+        int fileBlocks = (fEntry.inode.length + BYTES - 1) / BYTES;
+        int end = Math.min(fEntry.seekPtr / BYTES + fEntry.readAhead, fileBlocks);
+        if (first >= end) {
+            return;
+        }
+        fEntry.readAheadEnd = first + prefetch(fEntry, first, end);
+    }
+
+    //asks the cache to load the file's blocks first..end-1 in the
+    //background, stopping at the first hole; returns how many it asked for
+    private int prefetch(FileTableEntry fEntry, int first, int end) {
+        int[] blocks = new int[end - first];
+        //resolves pointers and extents alike
+        int count = fEntry.inode.findTargetBlocks(first * BYTES, blocks);
+        if (count > 0) {
+            int[] found = new int[count];
+            System.arraycopy(blocks, 0, found, 0, count);
+            SysLib.cprefetch(found, fEntry.advice == ADVICE_NOREUSE);
+        }
+        return count;
+    }
+
+    //takes an access hint for the entry. ADVICE_WILLNEED loads the blocks
+    //of length bytes from offset into the cache now, in the background,
+    //and leaves the entry as it was; the others set how its reads use the
+    //cache from now on. False for an unknown hint.
+    boolean advise(FileTableEntry fEntry, int advice, int offset, int length) {
+        if (advice < ADVICE_NORMAL || advice > ADVICE_WILLNEED) {
+            return false;
+        }
+        fEntry.lock.lock();
+        try {
+            if (advice != ADVICE_WILLNEED) {
+                fEntry.advice = advice;
+                //start over from the seek pointer
+                fEntry.readAhead = 0;
+                fEntry.readAheadEnd = 0;
+                fEntry.nextRead = fEntry.seekPtr;
+                return true;
+            }
+            if (offset < 0 || length < 0) {
+                return false;
+            }
+            if (!CACHED) {
+                return true;
+            }
+            int fileBlocks = (fEntry.inode.length + BYTES - 1) / BYTES;
+            int end = (int)Math.min((offset + (long)length + BYTES - 1) / BYTES, fileBlocks);
+            for (int first = offset / BYTES; first < end; first += MAX_VECTOR) {
+                int last = Math.min(first + MAX_VECTOR, end);
+                if (prefetch(fEntry, first, last) < last - first) {
+                    break; //a hole
+                }
+            }
+            return true;
+        } finally {
+            fEntry.lock.unlock();
+        }
+    }
+
     //uses buffer to write into specfic filetable entry 
 
     int write(FileTableEntry fEntry, byte[] buffer) {
@@ -169,56 +333,50 @@ public class FileSystem {
         if (fEntry.mode == READ) {
             return -1;
         } else {
-            synchronized(fEntry) {
+            fEntry.lock.lock();
+            try {
                 int srcPos = 0;
                 int bufferLen = buffer.length;
 
                 //check for appropriate buffer
                 while(bufferLen > 0) {
-                    //find the target block from the seek ptr
-                    int tgtBlock = fEntry.inode.findTargetBlock(fEntry.seekPtr);
-                    if (tgtBlock == -1) {
-                        //not found
-                        short freeBlk = (short)this.supBlock.getFreeBlock();
-                        switch(fEntry.inode.registerTargetBlock(fEntry.seekPtr, freeBlk)) {
-                            case -3:
-                                //find free node
-                                short nextFree = (short)this.supBlock.getFreeBlock();
-                                if (!fEntry.inode.registerIndexBlock(nextFree)) {
-                                    SysLib.cerr(BERROR);
-                                    return -1;
-                                }
-
-                                if (fEntry.inode.registerTargetBlock(fEntry.seekPtr, freeBlk) != 0) {
-                                    SysLib.cerr(BERROR);
-                                    return -1;
-                                }
-                            case 0:
-                            default:
-                                tgtBlock = freeBlk;
-                                break;
-                            case -2:
-                            case -1:
-                                SysLib.cerr(BERROR);
-                                return -1;
+                    //blocks spanned by the rest of the buffer, capped per request
+                    int loc = fEntry.seekPtr % BYTES;
+                    int count = Math.min((loc + bufferLen + BYTES - 1) / BYTES, MAX_VECTOR);
+                    int[] blocks = new int[count];
+                    boolean[] fresh = new boolean[count];
+                    //find the target blocks from the seek ptr; a file has no
+                    //holes, so the missing ones are at the end
+                    int found = fEntry.inode.findTargetBlocks(fEntry.seekPtr - loc, blocks);
+                    for (int i = found; i < count; i++) {
+                        //allocate it
+                        blocks[i] = this.allocateTargetBlock(fEntry, fEntry.seekPtr - loc + i * BYTES);
+                        fresh[i] = true;
+                        if (blocks[i] == -1) {
+                            //give back the blocks this pass allocated, last
+                            //first, and end with what the earlier passes wrote
+                            for (int k = i - 1; k >= found; k--) {
+                                fEntry.inode.unregisterTargetBlock(fEntry.seekPtr - loc + k * BYTES);
+                                this.supBlock.returnBlock(blocks[k]);
+                            }
+                            fEntry.inode.toDisk(fEntry.iNumber);
+                            return srcPos > 0 ? srcPos : -1;
                         }
                     }
-                    //FRESH ARRAY TO read TO
-                    byte[] freshArr = new byte[512];
-                    if (SysLib.rawread(tgtBlock, freshArr) == -1) {
+                    //minimum length field
+                    int minLen = Math.min(count * BYTES - loc, bufferLen);
+                    //FRESH ARRAY TO write from, with the old contents of the
+                    //blocks the buffer covers only partly
+                    byte[] freshArr = BlockPool.get(count);
+                    if (fillUncovered(blocks, fresh, freshArr, loc, loc + minLen) == -1) {
                         System.exit(2);
                     }
 
-                    //find loc
-                    int loc = fEntry.seekPtr % 512;
-                    //find the frame offset
-                    int offset = 512 - loc;
-                    //minimum length field
-                    int minLen = Math.min(offset, bufferLen);
                     //array copy call
                     System.arraycopy(buffer, srcPos, freshArr, loc, minLen);
-                    //write the target block to fresh array 
-                    SysLib.rawwrite(tgtBlock, freshArr);
+                    //write the target blocks from fresh array 
+                    writeBlocks(blocks, freshArr);
+                    BlockPool.put(freshArr);
                     //update seekPtr
                     fEntry.seekPtr += minLen;
                     srcPos += minLen;
@@ -232,51 +390,118 @@ public class FileSystem {
                 //assign inode to Disk field
                 fEntry.inode.toDisk(fEntry.iNumber);
                 return srcPos;
+            } finally {
+                fEntry.lock.unlock();
             }
         }
     }
 
-    //given FileTableEntry, de3allocate its blocks
-    private boolean deallocAllBlocks(FileTableEntry fEntry) {
-        if (fEntry.inode.count != 1) {
-            return false;
+    //blocks holding the next len bytes from the seek ptr, stopping at the
+    //first unallocated block or after MAX_VECTOR blocks
+    private int[] findTargetBlocks(FileTableEntry fEntry, int len) {
+        int first = fEntry.seekPtr / BYTES;
+        int count = Math.min((fEntry.seekPtr + len - 1) / BYTES - first + 1, MAX_VECTOR);
+        int[] blocks = new int[count];
+        int found = fEntry.inode.findTargetBlocks(first * BYTES, blocks);
+        if (found < count) {
+            int[] run = new int[found];
+            System.arraycopy(blocks, 0, run, 0, found);
+            return run;
         }
+        return blocks;
+    }
 
-        //get index block
-        byte[] indexBlk = fEntry.inode.unregisterIndexBlock();
-        //check null input
-        if (indexBlk != null) {
-            byte index = 0;
-            //to chost
-            short toShrt;
-            //while convering bytes works
-            while((toShrt = SysLib.bytes2short(indexBlk, index)) != -1) {
-                //convert back into super block
-                this.supBlock.returnBlock(toShrt);
+    //fills the bytes of freshArr outside [from, to) that a write of the
+    //blocks keeps: a block the write covers whole needs nothing, a freshly
+    //allocated one holds no data and gets zeros, and only the others, at
+    //most the first and the last, are read, in one request
+    //returns -1 if the read fails
+    private int fillUncovered(int[] blocks, boolean[] fresh, byte[] freshArr, int from, int to) {
+        int[] partial = new int[blocks.length];
+        int count = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            int start = i * BYTES;
+            int end = start + BYTES;
+            if (from <= start && to >= end) {
+                continue;
             }
-        }
-
-        int var5 = 0;
-
-        while(true) {
-            Inode var6 = fEntry.inode;
-            if (var5 >= 11) {
-
-                fEntry.inode.toDisk(fEntry.iNumber);
-                return !false;
+            if (fresh[i]) {
+                java.util.Arrays.fill(freshArr, start, Math.max(start, Math.min(from, end)), (byte)0);
+                java.util.Arrays.fill(freshArr, Math.min(end, Math.max(to, start)), end, (byte)0);
+            } else {
+                partial[count++] = i;
             }
-            if (fEntry.inode.direct[var5] != -1) {
-
-                this.supBlock.returnBlock(fEntry.inode.direct[var5]);
-
-
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (count == blocks.length) {
+            return readBlocks(blocks, freshArr);
+        }
+        int[] toRead = new int[count];
+        for (int k = 0; k < count; k++) {
+            toRead[k] = blocks[partial[k]];
+        }
+        byte[] old = BlockPool.get(count);
+        int result = readBlocks(toRead, old);
+        for (int k = 0; k < count && result != -1; k++) {
+            System.arraycopy(old, k * BYTES, freshArr, partial[k] * BYTES, BYTES);
+        }
+        BlockPool.put(old);
+        return result;
+    }
 
-                fEntry.inode.direct[var5] = -1;
+    //registers a free block for the given offset, which has none yet
+    //returns -1 on error
+    private int allocateTargetBlock(FileTableEntry fEntry, int offset) {
+        int freeBlk = this.supBlock.getFreeBlock();
+        if (freeBlk == -1) {
+            //disk full
+            SysLib.cerr(BERROR);
+            return -1;
+        }
+        int result = fEntry.inode.registerTargetBlock(offset, freeBlk);
+        //-3: an index block on the way is missing; deep offsets may miss
+        //up to three of them
+        while (result == -3) {
+            //find free node
+            int nextFree = this.supBlock.getFreeBlock();
+            if (nextFree == -1 || !fEntry.inode.registerIndexBlock(offset, nextFree)) {
+                if (nextFree != -1) {
+                    this.supBlock.returnBlock(nextFree);
+                }
+                result = -1;
+                break;
             }
+            result = fEntry.inode.registerTargetBlock(offset, freeBlk);
+        }
+        switch(result) {
+            case 0:
+            default:
+                return freeBlk;
+            case -2:
+            case -1:
+                this.supBlock.returnBlock(freeBlk);
+                SysLib.cerr(BERROR);
+                return -1;
+        }
+    }
 
-            ++var5;
+    //given FileTableEntry, de3allocate its blocks
+    private boolean deallocAllBlocks(FileTableEntry fEntry) {
+        if (fEntry.inode.count != 1) {
+            return false;
         }
 
+        //every block of the file, its index or extent blocks too
+        int[] blocks = fEntry.inode.unregisterAllBlocks();
+        //returned last to first, so the free list hands them out again in
+        //ascending order and a rewritten file is contiguous again
+        for (int i = blocks.length - 1; i >= 0; i--) {
+            this.supBlock.returnBlock(blocks[i]);
+        }
+        fEntry.inode.toDisk(fEntry.iNumber);
+        return true;
     }
 
     boolean delete(String fEntry) {
@@ -286,7 +511,8 @@ public class FileSystem {
     }
 
     int seek(FileTableEntry fEntry, int offset, int whence) {
-        synchronized(fEntry) {
+        fEntry.lock.lock();
+        try {
             switch(whence) {
                 case SEEK_SET:
                     if (offset >= 0 && offset <= this.fsize(fEntry)) {
@@ -311,6 +537,8 @@ public class FileSystem {
             }
 
             return fEntry.seekPtr;
-        } //end synchronized
+        } finally {
+            fEntry.lock.unlock();
+        }
     }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@ public class FileTable {
 
     private Vector table = new Vector<FileTableEntry>();         // the actual entity of this file table
     private Directory dir;        // the root directory
+    private SimLock lock = new SimLock(); // held while inodes are read or written
 
     public FileTable(Directory directory) { // constructor
         dir = directory;           // receive a reference to the Director
@@ -24,96 +25,124 @@ public class FileTable {
 
     // Allocate a new file table entry for this file name and register the new
     // inode within the directory.
-    public synchronized FileTableEntry falloc(String filename, String mode) {
-        short iNumber = -1;
-        Inode node = null;
-        while (true) {
-            // Set iNumber
-            if (filename.equals("/")) {
-                iNumber = 0;
-            } else {
-                iNumber = dir.namei(filename);
-            }
+    public FileTableEntry falloc(String filename, String mode) {
+        lock.lock();
+        try {
+            short iNumber = -1;
+            Inode node = null;
+            while (true) {
+                // Set iNumber
+                if (filename.equals("/")) {
+                    iNumber = 0;
+                } else {
+                    iNumber = dir.namei(filename);
+                }
 
-            if (iNumber >= 0) {
-                node = new Inode(iNumber);
-                if (mode.equals("r")) {
-                    // Read mode
-                    if (node.flag != 0 && node.flag != 1) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) {
+                if (iNumber >= 0) {
+                    node = new Inode(iNumber);
+                    if (mode.equals("r")) {
+                        // Read mode
+                        if (node.flag != 0 && node.flag != 1) {
+                            lock.await();
+                            continue;
                         }
-                        continue;
+                        node.flag = 1;
+                        break;
                     }
-                    node.flag = 1;
-                    break;
-                }
 
-                if (node.flag != 0 && node.flag != 3) {
-                    if (node.flag == 1 || node.flag == 2) {
-                        node.flag = (short) (node.flag + 3);
-                        node.toDisk(iNumber);
-                    }
+                    if (node.flag != 0 && node.flag != 3) {
+                        if (node.flag == 1 || node.flag == 2) {
+                            node.flag = (short) (node.flag + 3);
+                            node.toDisk(iNumber);
+                        }
 
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
+                        lock.await();
+                        continue;
                     }
-                    continue;
+                    node.flag = 2;
+                    break;
+                }
+                if (mode.equals("r")) {
+                    // If read only mode stop here
+                    return null;
                 }
+
+                iNumber = this.dir.ialloc(filename);
+                node = new Inode();
                 node.flag = 2;
                 break;
             }
-            if (mode.equals("r")) {
-                // If read only mode stop here
-                return null;
-            }
-
-            iNumber = this.dir.ialloc(filename);
-            node = new Inode();
-            node.flag = 2;
-            break;
+            ++node.count;
+            node.toDisk(iNumber);
+            FileTableEntry tblEntry = new FileTableEntry(node, iNumber, mode);
+            table.addElement(tblEntry);
+            return tblEntry;
+        } finally {
+            lock.unlock();
         }
-        ++node.count;
-        node.toDisk(iNumber);
-        FileTableEntry tblEntry = new FileTableEntry(node, iNumber, mode);
-        table.addElement(tblEntry);
-        return tblEntry;
     }
 
     //Receive a file table entry and save the corresponding inode to disk,
     // free the file table entry. Returns true if entry was found.
-    public synchronized boolean ffree(FileTableEntry entry) {
-        // Check for null entry being given
-        if (entry == null) {
-            return true;
-        }
+    public boolean ffree(FileTableEntry entry) {
+        lock.lock();
+        try {
+            // Check for null entry being given
+            if (entry == null) {
+                return true;
+            }
 
-        // Attempt to remove, return false if entry not found
-        if (!table.removeElement(entry)) {
-            return false;
-        }
-        entry.inode.count--;
+            // Attempt to remove, return false if entry not found
+            if (!table.removeElement(entry)) {
+                return false;
+            }
+            entry.inode.count--;
 
-        if (entry.inode.flag == 1 || entry.inode.flag == 2) {
-            entry.inode.flag = 0;
-        }
-        if (entry.inode.flag == 4 || entry.inode.flag == 5) {
-            entry.inode.flag = 3;
-        }
+            if (entry.inode.flag == 1 || entry.inode.flag == 2) {
+                entry.inode.flag = 0;
+            }
+            if (entry.inode.flag == 4 || entry.inode.flag == 5) {
+                entry.inode.flag = 3;
+            }
 
-        // Write inode to disk
-        entry.inode.toDisk(entry.iNumber);
+            // Write inode to disk, with the index blocks it kept in memory
+            entry.inode.sync();
+            entry.inode.toDisk(entry.iNumber);
 
-        // Set entry to null
-        entry = null;
-        notify();
-        return true;
+            // Set entry to null
+            entry = null;
+            lock.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Write back the index blocks every open inode keeps in memory
+    public void sync() {
+        lock.lock();
+        try {
+            for (int i = 0; i < table.size(); i++) {
+                FileTableEntry entry = (FileTableEntry) table.elementAt(i);
+                entry.lock.lock();
+                try {
+                    entry.inode.sync();
+                } finally {
+                    entry.lock.unlock();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Returns if the table is empty
-    public synchronized boolean fempty() {
-        return table.isEmpty();  // return if table is empty
+    public boolean fempty() {
+        lock.lock();
+        try {
+            return table.isEmpty();  // return if table is empty
+        } finally {
+            lock.unlock();
+        }
     }                            // should be called before starting a format
 }
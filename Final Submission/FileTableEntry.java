@@ -14,6 +14,11 @@ public class FileTableEntry {          // Each table entry should have
     public final short iNumber;         //    this inode number
     public int count;                   //    # threads sharing this entry
     public final String mode;           //    "r", "w", "w+", or "a"
+    public int nextRead;                //    where a sequential read starts
+    public int readAhead;               //    read-ahead window in blocks
+    public int readAheadEnd;            //    first block not read ahead yet
+    public int advice;                  //    a FileSystem.ADVICE_ value
+    public final SimLock lock = new SimLock(); // held to read, write or seek
 
     public FileTableEntry(Inode i, short inumber, String m) {
         seekPtr = 0;             // the seek pointer is set to the file top
@@ -23,5 +28,9 @@ public class FileTableEntry {          // Each table entry should have
         mode = m;                // once access mode is set, it never changes
         if (mode.compareTo("a") == 0) // if mode is append,
             seekPtr = inode.length;        // seekPtr points to the end of file
+        nextRead = seekPtr;      // reading from here on counts as sequential
+        readAhead = 0;
+        readAheadEnd = 0;
+        advice = FileSystem.ADVICE_NORMAL;
     }
 }
\ No newline at end of file
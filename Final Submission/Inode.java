@@ -1,3 +1,5 @@
+import java.util.*;
+
 /**
  *  Created by Phuc (billy) Huynh on 6/1/09
  *  Starting from the blocks after the superblock, will be the inode blocks.
@@ -11,18 +13,124 @@
  *  1. the length of the corresponding file
  *  2. the number of file (structure) table entries that point to this inode
  *  3. the flags indicate (self determined)
+ *
+ *  The superblock records which on-disk format the disk uses:
+ *  FORMAT_SHORT is the original one above, with 16-bit block numbers.
+ *  FORMAT_INT stores 32-bit block numbers, so each inode takes 64 bytes
+ *  (8 per block) and an index block holds 128 pointers instead of 256.
+ *  Its inodes also have a double and a triple indirect pointer, so a file
+ *  can grow past the 139 blocks direct and single indirect ones reach.
+ *  Index blocks are decoded into a small per-inode cache, so a lookup deep
+ *  in a large file does not read three blocks every time.
+ *  FORMAT_EXTENT has the same 64-byte inodes but maps the file as extents,
+ *  runs of consecutive blocks stored as (start block, length): 6 in the
+ *  inode itself and the rest in a chain of extent blocks, 63 each, that
+ *  the indirect pointer heads. A file written sequentially into free space
+ *  takes a handful of extents. The whole map is decoded when the inode is
+ *  read, so lookups need no disk access.
+ *  In all three formats, the index blocks (short and int) or extent blocks
+ *  changed while the file is open stay in memory with the inode; sync()
+ *  writes them back together, when the file is closed or the file system
+ *  synced.
  */
 public class Inode {
 
+    // On-disk formats
+    public final static int FORMAT_SHORT = 0;      // 16-bit pointers, 32-byte inodes
+    public final static int FORMAT_INT = 2;        // 32-bit pointers, 64-byte inodes
+    public final static int FORMAT_EXTENT = 3;     // extents, 64-byte inodes
+
     // Initializing variables
-    private final static int iNodeSize = 32;       // fix to 32 bytes
     private final static int directSize = 11;      // # direct pointers
+    private final static int inlineExtents = 6;    // # extents in the inode
+    private final static int blockExtents = 63;    // # extents per extent block
+    private final static int indexCacheSize = 16;  // # index blocks kept decoded
+    private static int format = FORMAT_INT;        // format of the mounted disk
 
     public int length;                             // file size in bytes
     public short count;                            // # file-table entries pointing to this
     public short flag;                             // 0 = unused, 1 = used, ...
-    public short direct[] = new short[directSize]; // direct pointers
-    public short indirect;                         // a indirect pointer, block number of another block
+    public int direct[] = new int[directSize];     // direct pointers
+    public int indirect;                           // a indirect pointer, block number of another block
+    public int doubleIndirect;                     // FORMAT_INT: index block of index blocks
+    public int tripleIndirect;                     // FORMAT_INT: one more level down
+
+    // index blocks used lately, decoded, by block number; least recently
+    // used first
+    private LinkedHashMap<Integer, int[]> indexCache =
+        new LinkedHashMap<Integer, int[]>(indexCacheSize * 2, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > indexCacheSize;
+            }
+        };
+
+    // index blocks changed since the last sync(), by block number; kept
+    // out of indexCache so they are never evicted unwritten
+    private TreeMap<Integer, int[]> dirtyIndex =
+        new TreeMap<Integer, int[]>();
+
+    // FORMAT_EXTENT: extent i maps extentLength[i] file blocks from file
+    // block extentFirst[i] on to the disk blocks from extentStart[i] on
+    private int extents = 0;
+    private int extentStart[] = new int[inlineExtents];
+    private int extentLength[] = new int[inlineExtents];
+    private int extentFirst[] = new int[inlineExtents];
+    private int extentBlocks[] = new int[0];       // the extent block chain
+    private BitSet dirtyExtentBlocks = new BitSet(); // by chain index
+
+    /**
+     * Selects the on-disk format used by every inode from now on
+     */
+    public static void setFormat(int diskFormat) {
+        format = diskFormat;
+    }
+
+    /**
+     * Bytes per inode: 32 or 64
+     */
+    public static int inodeSize() {
+        return format == FORMAT_SHORT ? 32 : 64;
+    }
+
+    /**
+     * Inodes stored in one block: 16 or 8
+     */
+    public static int inodesPerBlock() {
+        return Disk.blockSize / inodeSize();
+    }
+
+    /**
+     * Block pointers stored in one index block: 256 or 128
+     */
+    public static int indexEntries() {
+        return Disk.blockSize / pointerSize();
+    }
+
+    private static int pointerSize() {
+        return format == FORMAT_SHORT ? 2 : 4;
+    }
+
+    /**
+     * Reads the i-th block pointer of an index block
+     */
+    public static int getIndexEntry(byte[] block, int i) {
+        return readPointer(block, i * pointerSize());
+    }
+
+    private static int readPointer(byte[] data, int offset) {
+        if (format == FORMAT_SHORT) {
+            return SysLib.bytes2short(data, offset);
+        }
+        return SysLib.bytes2int(data, offset);
+    }
+
+    private static void writePointer(int pointer, byte[] data, int offset) {
+        if (format == FORMAT_SHORT) {
+            SysLib.short2bytes((short)pointer, data, offset);
+        } else {
+            SysLib.int2bytes(pointer, data, offset);
+        }
+    }
 
     /**
      * Default constructor:
@@ -34,6 +142,8 @@ public class Inode {
         for ( int i = 0; i < directSize; i++ )
             direct[i] = -1;						// indicates invalid block numbers
         indirect = -1;							// means no data blocks yet
+        doubleIndirect = -1;
+        tripleIndirect = -1;
     }
 
     /**
@@ -47,23 +157,40 @@ public class Inode {
      */
     public Inode( short iNumber ) {
         // Find the corresponding inode from the disk by calculating disk block
-        int blockNumber = 1 + (iNumber / 16);
-        byte data[] = new byte[Disk.blockSize];  // setting the buffer size of a block 512 bytes
+        int blockNumber = 1 + (iNumber / inodesPerBlock());
+        byte data[] = BlockPool.get();  // a pooled buffer of one block, 512 bytes
         // read from this blockNumber, the inode info, into this data buffer
-        SysLib.rawread(blockNumber, data);
+        FileSystem.readBlock(blockNumber, data);
         // find where we are in the blockNumber of 512 bytes
-        int offset = (iNumber % 16) * 32;
+        int offset = (iNumber % inodesPerBlock()) * inodeSize();
         this.length = SysLib.bytes2int(data, offset);
         offset += 4;
         this.count = SysLib.bytes2short(data, offset);
         offset += 2;
         this.flag = SysLib.bytes2short(data, offset);
         offset += 2;
+        if (format == FORMAT_EXTENT) {
+            for (int i = 0; i < directSize; i++) {
+                this.direct[i] = -1;
+            }
+            decodeExtents(data, offset, inlineExtents);
+            this.indirect = SysLib.bytes2int(data, offset + inlineExtents * 8);
+            BlockPool.put(data);
+            readExtentBlocks();
+            return;
+        }
         for(int i =0; i < directSize; i++) {
-            this.direct[i] = SysLib.bytes2short(data, offset);
-            offset += 2;
+            this.direct[i] = readPointer(data, offset);
+            offset += pointerSize();
         }
-        this.indirect = SysLib.bytes2short(data, offset);
+        this.indirect = readPointer(data, offset);
+        this.doubleIndirect = -1;
+        this.tripleIndirect = -1;
+        if (format == FORMAT_INT) {
+            this.doubleIndirect = SysLib.bytes2int(data, offset + 4);
+            this.tripleIndirect = SysLib.bytes2int(data, offset + 8);
+        }
+        BlockPool.put(data);
     }
 
     /**
@@ -72,29 +199,75 @@ public class Inode {
      */
     public void toDisk( short iNumber ) {
         // find block number
-        byte data[] = new byte[Disk.blockSize];
-        int blockNumber = 1 + (iNumber / 16);
-        SysLib.rawread(blockNumber, data);
+        byte data[] = BlockPool.get();
+        int blockNumber = 1 + (iNumber / inodesPerBlock());
+        FileSystem.readBlock(blockNumber, data);
         // find offset in the block
-        int offset = (iNumber % 16) * 32;
+        int offset = (iNumber % inodesPerBlock()) * inodeSize();
         SysLib.int2bytes(this.length, data, offset);
         offset += 4;
         SysLib.short2bytes(this.count, data, offset);
         offset += 2;
         SysLib.short2bytes(this.flag, data, offset);
         offset += 2;
-        for(int i = 0; i < directSize; i++) {
-            SysLib.short2bytes(this.direct[i], data, offset);
-            offset += 2;
+        if (format == FORMAT_EXTENT) {
+            for (int i = 0; i < inlineExtents; i++) {
+                encodeExtent(i, data, offset);
+                offset += 8;
+            }
+            SysLib.int2bytes(this.indirect, data, offset);
+            SysLib.int2bytes(0, data, offset + 4);
+        } else {
+            for(int i = 0; i < directSize; i++) {
+                writePointer(this.direct[i], data, offset);
+                offset += pointerSize();
+            }
+            writePointer(this.indirect, data, offset);
+            if (format == FORMAT_INT) {
+                SysLib.int2bytes(this.doubleIndirect, data, offset + 4);
+                SysLib.int2bytes(this.tripleIndirect, data, offset + 8);
+            }
         }
-        SysLib.short2bytes(this.indirect, data, offset);
-        SysLib.rawwrite(blockNumber, data);
+        FileSystem.writeBlock(blockNumber, data);
+        BlockPool.put(data);
+    }
+
+    /**
+     * Writes back the index or extent blocks changed since the last sync,
+     * in block order and in one request. Called when the file is closed and
+     * when the file system is synced; toDisk alone leaves them in memory.
+     */
+    public void sync() {
+        int count = dirtyIndex.size() + dirtyExtentBlocks.cardinality();
+        if (count == 0) {
+            return;
+        }
+        int[] blocks = new int[count];
+        byte[] data = BlockPool.get(count);
+        int n = 0;
+        for (Map.Entry<Integer, int[]> e : dirtyIndex.entrySet()) {
+            int[] entries = e.getValue();
+            for (int i = 0; i < entries.length; i++) {
+                writePointer(entries[i], data, n * Disk.blockSize + i * pointerSize());
+            }
+            blocks[n++] = e.getKey();
+            indexCache.put(e.getKey(), entries);
+        }
+        for (int k = dirtyExtentBlocks.nextSetBit(0); k >= 0;
+             k = dirtyExtentBlocks.nextSetBit(k + 1)) {
+            encodeExtentBlock(k, data, n * Disk.blockSize);
+            blocks[n++] = extentBlocks[k];
+        }
+        FileSystem.writeBlocks(blocks, data);
+        BlockPool.put(data);
+        dirtyIndex.clear();
+        dirtyExtentBlocks.clear();
     }
 
     /**
      *  return indirect pointer
      */
-    public short findIndexBlockNumber() {
+    public int findIndexBlockNumber() {
         return this.indirect;
     }
 
@@ -102,8 +275,23 @@ public class Inode {
      * Formats the indirect block
      * Return false if not all direct poitners are used or
      * if indirect pointer is used else, true
+     * FORMAT_EXTENT: links indexBlockNumber to the end of the extent block
+     * chain; false if the extents registered so far still have room.
      */
-    public boolean registerIndexBlock(short indexBlockNumber) {
+    public boolean registerIndexBlock(int indexBlockNumber) {
+        if (format == FORMAT_EXTENT) {
+            if (extents < extentCapacity()) {
+                return false;
+            }
+            addExtentBlock(indexBlockNumber);
+            if (extentBlocks.length == 1) {
+                this.indirect = indexBlockNumber;
+            } else {
+                dirtyExtentBlocks.set(extentBlocks.length - 2); // link it
+            }
+            dirtyExtentBlocks.set(extentBlocks.length - 1);
+            return true;
+        }
         // check if all direct pointers are used
         for(int i = 0; i < directSize; i++) {
             if(this.direct[i] == -1) {
@@ -114,18 +302,50 @@ public class Inode {
         if(this.indirect != -1) {
             return true;
         }
-        // set indirect pointer to indexBlock number
-        this.indirect = indexBlockNumber;
-        byte block[] = new byte[Disk.blockSize];
-        // format the block to 512/2 = 256 pointers, set it to short -1 (2 bytes each)
-        int offset = 0;
-        short indexPtr = -1;
-        for(int i = 0; i < 256; i++) {
-            SysLib.short2bytes(indexPtr, block, offset);
-            offset += 2;
+        return registerIndexBlock(directSize * Disk.blockSize, indexBlockNumber);
+    }
+
+    /**
+     * Formats indexBlockNumber as the first index block missing on the way
+     * to the block at the given offset: the indirect, double or triple
+     * indirect block, or one below them. registerTargetBlock returns -3
+     * until none is missing.
+     * Return false if none is missing (FORMAT_EXTENT: see above)
+     */
+    public boolean registerIndexBlock(int offset, int indexBlockNumber) {
+        if (format == FORMAT_EXTENT) {
+            return registerIndexBlock(indexBlockNumber);
+        }
+        int[] slots = indexSlots(offset / Disk.blockSize);
+        if (slots == null) {
+            return false;
+        }
+        // format the block to 256 or 128 pointers, set each to -1
+        int[] empty = new int[indexEntries()];
+        Arrays.fill(empty, -1);
+        int block = indexRoot(slots.length);
+        if (block < 0) {
+            if (slots.length == 1) {
+                this.indirect = indexBlockNumber;
+            } else if (slots.length == 2) {
+                this.doubleIndirect = indexBlockNumber;
+            } else {
+                this.tripleIndirect = indexBlockNumber;
+            }
+            writeIndex(indexBlockNumber, empty);
+            return true;
+        }
+        for (int level = 0; level < slots.length - 1; level++) {
+            int[] entries = readIndex(block);
+            if (entries[slots[level]] < 0) {
+                entries[slots[level]] = indexBlockNumber;
+                writeIndex(block, entries);
+                writeIndex(indexBlockNumber, empty);
+                return true;
+            }
+            block = entries[slots[level]];
         }
-        SysLib.rawwrite(indexBlockNumber, block);
-        return true;
+        return false;
     }
 
     /**
@@ -133,16 +353,46 @@ public class Inode {
      */
     public int findTargetBlock(int offset) {
         int var1 = offset / Disk.blockSize;
+        if (format == FORMAT_EXTENT) {
+            int e = findExtent(var1);
+            return e == -1 ? -1 : extentStart[e] + var1 - extentFirst[e];
+        }
         if (var1 < 11) {
             return this.direct[var1];
-        } else if (this.indirect < 0) {
-            return -1;
-        } else {
-            byte[] var2 = new byte[Disk.blockSize];
-            SysLib.rawread(this.indirect, var2);
-            int var3 = var1 - 11;
-            return SysLib.bytes2short(var2, var3 * 2);
         }
+        return findIndexedBlock(var1);
+    }
+
+    /**
+     * Fills blocks with the blocks holding the file from offset on, one per
+     * element, up to the first unallocated one. Index blocks come from the
+     * inode's cache after the first.
+     * Return how many were found
+     */
+    public int findTargetBlocks(int offset, int[] blocks) {
+        int first = offset / Disk.blockSize;
+        int count = 0;
+        if (format == FORMAT_EXTENT) {
+            for (int e = findExtent(first); e != -1 && e < extents; e++) {
+                for (int i = first + count - extentFirst[e]; i < extentLength[e]; i++) {
+                    if (count == blocks.length) {
+                        return count;
+                    }
+                    blocks[count++] = extentStart[e] + i;
+                }
+            }
+            return count;
+        }
+        for (; count < blocks.length; count++) {
+            int position = first + count;
+            int block = (position < directSize) ? this.direct[position]
+                                                : findIndexedBlock(position);
+            if (block == -1) {
+                break;
+            }
+            blocks[count] = block;
+        }
+        return count;
     }
 
     /**
@@ -151,9 +401,12 @@ public class Inode {
      * Return 0 if the block is registered successfully,
      */
 
-    public int registerTargetBlock(int offset, short blockNumber)
+    public int registerTargetBlock(int offset, int blockNumber)
     {
         int blockPosition = offset / Disk.blockSize;
+        if (format == FORMAT_EXTENT) {
+            return registerExtentBlock(blockPosition, blockNumber);
+        }
         if (blockPosition < 11)
         {
             if (this.direct[blockPosition] != -1)
@@ -168,37 +421,319 @@ public class Inode {
             this.direct[blockPosition] = blockNumber;
             return 0;
         }
-        else if (this.indirect < 0) {
+        int[] slots = indexSlots(blockPosition);
+        if (slots == null) {
+            return -1;
+        }
+        // down to the index block that holds the pointer
+        int block = indexRoot(slots.length);
+        for (int level = 0; block >= 0 && level < slots.length - 1; level++) {
+            block = readIndex(block)[slots[level]];
+        }
+        if (block < 0) {
             return -3;
+        }
+        int[] entries = readIndex(block);
+        int var5 = slots[slots.length - 1];
+        if (entries[var5] > 0) {
+            SysLib.cerr("indexBlock, indirectNumber = " + var5 + " contents = " + entries[var5] + "\n");
+            return -1;
+        }
+        entries[var5] = blockNumber;
+        writeIndex(block, entries);
+        return 0;
+    }
+
+    /**
+     * Unregisters the block at the given offset, which must be the last one
+     * registered; index and extent blocks stay. Used to give back blocks a
+     * write allocated but could not use.
+     * Return the block, -1 if there is none
+     */
+    public int unregisterTargetBlock(int offset) {
+        int blockPosition = offset / Disk.blockSize;
+        int block = findTargetBlock(offset);
+        if (block == -1) {
+            return -1;
+        }
+        if (format == FORMAT_EXTENT) {
+            int last = extents - 1;
+            if (--extentLength[last] == 0) {
+                extents--;
+            }
+            if (last >= inlineExtents) {
+                dirtyExtentBlocks.set((last - inlineExtents) / blockExtents);
+            }
+        } else if (blockPosition < directSize) {
+            this.direct[blockPosition] = -1;
         } else {
-            byte[] block = new byte[Disk.blockSize];
-            SysLib.rawread(this.indirect, block);
-            int var5 = blockPosition - 11;
-            if (SysLib.bytes2short(block, var5 * 2) > 0) {
-                SysLib.cerr("indexBlock, indirectNumber = " + var5 + " contents = " + SysLib.bytes2short(block, var5 * 2) + "\n");
-                return -1;
-            } else {
-                SysLib.short2bytes(blockNumber, block, var5 * 2);
-                SysLib.rawwrite(this.indirect, block);
-                return 0;
+            int[] slots = indexSlots(blockPosition);
+            int index = indexRoot(slots.length);
+            for (int level = 0; level < slots.length - 1; level++) {
+                index = readIndex(index)[slots[level]];
             }
+            int[] entries = readIndex(index);
+            entries[slots[slots.length - 1]] = -1;
+            writeIndex(index, entries);
         }
+        return block;
     }
 
     /**
-     * Frees a block, returning the data within the block and unregistering the
-     * block.
-     * Return The byte array of data from the block. Returns null if the block
-     * is unregistered.
+     * Unregisters every block of the file, index and extent blocks included,
+     * leaving it empty.
+     * Return the blocks, the data blocks first and in file order
      */
-    public byte[] unregisterIndexBlock() {
-        if (this.indirect >= 0) {
-            byte[] newBlock = new byte[Disk.blockSize];
-            SysLib.rawread(this.indirect, newBlock);
-            this.indirect = -1;
-            return newBlock;
+    public int[] unregisterAllBlocks() {
+        int[] blocks;
+        int n = 0;
+        if (format == FORMAT_EXTENT) {
+            blocks = new int[mappedBlocks() + extentBlocks.length];
+            for (int e = 0; e < extents; e++) {
+                for (int i = 0; i < extentLength[e]; i++) {
+                    blocks[n++] = extentStart[e] + i;
+                }
+            }
+            for (int k = 0; k < extentBlocks.length; k++) {
+                blocks[n++] = extentBlocks[k];
+            }
+            extents = 0;
+            extentBlocks = new int[0];
+            dirtyExtentBlocks.clear();
         } else {
+            ArrayList<Integer> data = new ArrayList<Integer>();
+            ArrayList<Integer> index = new ArrayList<Integer>();
+            for (int i = 0; i < directSize && this.direct[i] != -1; i++) {
+                data.add(this.direct[i]);
+                this.direct[i] = -1;
+            }
+            collectBlocks(this.indirect, 1, data, index);
+            collectBlocks(this.doubleIndirect, 2, data, index);
+            collectBlocks(this.tripleIndirect, 3, data, index);
+            data.addAll(index);
+            blocks = new int[data.size()];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = data.get(i);
+            }
+            this.doubleIndirect = -1;
+            this.tripleIndirect = -1;
+            indexCache.clear(); // the blocks are free now
+            dirtyIndex.clear();
+        }
+        this.indirect = -1;
+        return blocks;
+    }
+
+    // Index block helpers, for FORMAT_SHORT and FORMAT_INT
+
+    // Where the pointer to file block position is kept past the direct
+    // ones: one slot per level, from the block indexRoot(slots.length)
+    // down, the last holding the data block. null past the largest file.
+    private int[] indexSlots(int position) {
+        int entries = indexEntries();
+        position -= directSize;
+        if (position < 0) {
             return null;
         }
+        if (position < entries) {
+            return new int[] { position };
+        }
+        position -= entries;
+        if (format == FORMAT_SHORT) {
+            return null; // its inodes have no room for deeper pointers
+        }
+        if (position < entries * entries) {
+            return new int[] { position / entries, position % entries };
+        }
+        position -= entries * entries;
+        if ((long)position < (long)entries * entries * entries) {
+            return new int[] { position / (entries * entries),
+                               position / entries % entries,
+                               position % entries };
+        }
+        return null;
+    }
+
+    // the indirect, double or triple indirect pointer, by levels below it
+    private int indexRoot(int levels) {
+        return levels == 1 ? this.indirect
+             : levels == 2 ? this.doubleIndirect : this.tripleIndirect;
+    }
+
+    // the data block at file block position past the direct ones, -1 if
+    // it or an index block on the way is not there
+    private int findIndexedBlock(int position) {
+        int[] slots = indexSlots(position);
+        if (slots == null) {
+            return -1;
+        }
+        int block = indexRoot(slots.length);
+        for (int level = 0; block >= 0 && level < slots.length; level++) {
+            block = readIndex(block)[slots[level]];
+        }
+        return block < 0 ? -1 : block;
+    }
+
+    // the pointers in index block blockNumber, from memory if they are
+    // there; the caller may change them and writeIndex them back
+    private int[] readIndex(int blockNumber) {
+        int[] entries = dirtyIndex.get(blockNumber);
+        if (entries == null) {
+            entries = indexCache.get(blockNumber);
+        }
+        if (entries == null) {
+            byte[] block = BlockPool.get();
+            FileSystem.readBlock(blockNumber, block);
+            entries = new int[indexEntries()];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = getIndexEntry(block, i);
+            }
+            BlockPool.put(block);
+            indexCache.put(blockNumber, entries);
+        }
+        return entries;
+    }
+
+    // sets the pointers of index block blockNumber; sync() writes them
+    private void writeIndex(int blockNumber, int[] entries) {
+        indexCache.remove(blockNumber);
+        dirtyIndex.put(blockNumber, entries);
+    }
+
+    // adds the data blocks below index block blockNumber, levels above the
+    // data, to data in file order and the index blocks themselves to index,
+    // up to the first unused pointer
+    private void collectBlocks(int blockNumber, int levels,
+                               List<Integer> data, List<Integer> index) {
+        if (blockNumber < 0) {
+            return;
+        }
+        for (int entry : readIndex(blockNumber)) {
+            if (entry < 0) {
+                break;
+            }
+            if (levels == 1) {
+                data.add(entry);
+            } else {
+                collectBlocks(entry, levels - 1, data, index);
+            }
+        }
+        index.add(blockNumber);
+    }
+
+    // FORMAT_EXTENT helpers
+
+    // file blocks the extents map
+    private int mappedBlocks() {
+        return extents == 0 ? 0 : extentFirst[extents - 1] + extentLength[extents - 1];
+    }
+
+    // extents the inode and its extent blocks have room for
+    private int extentCapacity() {
+        return inlineExtents + extentBlocks.length * blockExtents;
+    }
+
+    // the extent holding the given file block, -1 if none does
+    private int findExtent(int fileBlock) {
+        if (fileBlock < 0 || fileBlock >= mappedBlocks()) {
+            return -1;
+        }
+        int low = 0;
+        int high = extents - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (extentFirst[mid] <= fileBlock) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void appendExtent(int start, int blocks) {
+        if (extents == extentStart.length) {
+            extentStart = Arrays.copyOf(extentStart, extents * 2);
+            extentLength = Arrays.copyOf(extentLength, extents * 2);
+            extentFirst = Arrays.copyOf(extentFirst, extents * 2);
+        }
+        extentFirst[extents] = mappedBlocks();
+        extentStart[extents] = start;
+        extentLength[extents] = blocks;
+        extents++;
+    }
+
+    private void addExtentBlock(int blockNumber) {
+        extentBlocks = Arrays.copyOf(extentBlocks, extentBlocks.length + 1);
+        extentBlocks[extentBlocks.length - 1] = blockNumber;
+    }
+
+    // appends the extents stored at offset, up to the first empty one
+    private void decodeExtents(byte[] data, int offset, int count) {
+        for (int i = 0; i < count; i++, offset += 8) {
+            int blocks = SysLib.bytes2int(data, offset + 4);
+            if (blocks <= 0) {
+                return;
+            }
+            appendExtent(SysLib.bytes2int(data, offset), blocks);
+        }
+    }
+
+    // stores extent i at offset, or an empty one if there is no extent i
+    private void encodeExtent(int i, byte[] data, int offset) {
+        SysLib.int2bytes(i < extents ? extentStart[i] : -1, data, offset);
+        SysLib.int2bytes(i < extents ? extentLength[i] : 0, data, offset + 4);
+    }
+
+    // follows the extent block chain from the indirect pointer
+    private void readExtentBlocks() {
+        byte[] block = BlockPool.get();
+        int next = this.indirect;
+        while (next > 0) {
+            FileSystem.readBlock(next, block);
+            addExtentBlock(next);
+            decodeExtents(block, 0, blockExtents);
+            next = SysLib.bytes2int(block, blockExtents * 8);
+        }
+        BlockPool.put(block);
+    }
+
+    // stores extent block k of the chain at offset: its extents, then the
+    // next one's block number
+    private void encodeExtentBlock(int k, byte[] data, int offset) {
+        int first = inlineExtents + k * blockExtents;
+        for (int i = 0; i < blockExtents; i++) {
+            encodeExtent(first + i, data, offset + i * 8);
+        }
+        int next = (k + 1 < extentBlocks.length) ? extentBlocks[k + 1] : -1;
+        SysLib.int2bytes(next, data, offset + blockExtents * 8);
+        SysLib.int2bytes(0, data, offset + blockExtents * 8 + 4);
+    }
+
+    // registerTargetBlock for FORMAT_EXTENT: a block right after the last
+    // extent's run lengthens it, any other starts a new extent
+    // Return as registerTargetBlock does; -3 when a new extent block is needed
+    private int registerExtentBlock(int fileBlock, int blockNumber) {
+        int mapped = mappedBlocks();
+        if (fileBlock < mapped) {
+            return -1;
+        }
+        if (fileBlock > mapped) {
+            return -2;
+        }
+        int last = extents - 1;
+        if (last >= 0 && extentStart[last] + extentLength[last] == blockNumber) {
+            extentLength[last]++;
+        } else {
+            if (extents == extentCapacity()) {
+                return -3;
+            }
+            appendExtent(blockNumber, 1);
+            last++;
+        }
+        if (last >= inlineExtents) {
+            dirtyExtentBlocks.set((last - inlineExtents) / blockExtents);
+        }
+        return 0;
     }
 }
\ No newline at end of file
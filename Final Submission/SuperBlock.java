@@ -5,6 +5,12 @@
  * 1. The number of disk blocks.
  * 2. The number of inodes.
  * 3. The block number of the head block of the free list.
+ * 4. The on-disk format version (Inode.FORMAT_SHORT, FORMAT_INT or
+ *    FORMAT_EXTENT). Disks formatted before versions existed hold 0, i.e.
+ *    FORMAT_SHORT. New formats use FORMAT_SHORT, the layout the tests
+ *    expect, unless ThreadOS was booted with -Dthreados.fs.format=int or
+ *    extent. Disks of more than 32767 blocks always get FORMAT_INT (or
+ *    FORMAT_EXTENT), since 16-bit pointers cannot address them.
  * It is the OS-managed block. No other info must be recorded in
  * and no user threads must be able to get access to the superblock
  */
@@ -14,10 +20,12 @@ public class SuperBlock {
 
     private final static int DEFAULT_INODE_BLOCKS = 64;
     private final static short END_OF_LIST = -1;
+    private final static String FORMAT_PROPERTY = "threados.fs.format";
 
     public int totalBlocks; // the number of disk blocks available on disk
     public int inodeBlocks; // the number of inodes
     public int freeList;     // the block number of the free list's head
+    public int version;      // the on-disk format of inodes and index blocks
 
     /**
      * Constructor
@@ -26,14 +34,19 @@ public class SuperBlock {
      */
     public SuperBlock(int diskSize) {
         // get the per block size from disk (which is 512)
-        byte superBlock[] = new byte[Disk.blockSize];
+        byte superBlock[] = BlockPool.get();
         // read block 0 from disk, and store it into superBlock buff
-        SysLib.rawread(0, superBlock);
+        FileSystem.readBlock(0, superBlock);
         // convert the contents in superBlock byte buffer, into ints
         this.totalBlocks = SysLib.bytes2int(superBlock, 0);
         this.inodeBlocks = SysLib.bytes2int(superBlock, 4);
         this.freeList = SysLib.bytes2int(superBlock, 8);
-        if(this.totalBlocks == diskSize && this.inodeBlocks > 0 && freeList >=2) {
+        this.version = SysLib.bytes2int(superBlock, 12);
+        BlockPool.put(superBlock);
+        if(this.totalBlocks == diskSize && this.inodeBlocks > 0 && freeList >=2
+           && (version == Inode.FORMAT_SHORT || version == Inode.FORMAT_INT
+               || version == Inode.FORMAT_EXTENT)) {
+            Inode.setFormat(this.version);
             return;   // disk contents are valid
         }
         else {
@@ -51,13 +64,18 @@ public class SuperBlock {
      */
     public void format(int inodeBlocks) {
         this.inodeBlocks = inodeBlocks;
+        // the version comes from -Dthreados.fs.format and the disk size,
+        // not from what the disk held before (see newVersion)
+        this.version = newVersion(this.totalBlocks);
+        Inode.setFormat(this.version);
+        int perBlock = Inode.inodesPerBlock();
 
         // free list to generalized to any
-        if(inodeBlocks % 16 != 0) {
-            this.freeList = (inodeBlocks/16) + 2;
+        if(inodeBlocks % perBlock != 0) {
+            this.freeList = (inodeBlocks/perBlock) + 2;
         }
         else {
-            this.freeList = inodeBlocks/16 + 1;
+            this.freeList = inodeBlocks/perBlock + 1;
         }
         // intializing an inode object for each inodeblock
         for(short j =0; j < this.inodeBlocks; j++) {
@@ -65,31 +83,55 @@ public class SuperBlock {
             inode.flag = 0;  // SET IT TO UNUSED
             inode.toDisk(j);
         }
-        // linking each free block to each other
+        // linking each free block to each other, all through one zeroed
+        // buffer: only its first 4 bytes change
+        byte buffer[] = BlockPool.getZeroed();
         for(int i = this.freeList; i < this.totalBlocks; i++) {
-            byte buffer[] = new byte[Disk.blockSize];
             // convert my int to bytes
             SysLib.int2bytes(i+1, buffer, 0);
-            SysLib.rawwrite(i, buffer);
+            FileSystem.writeBlock(i, buffer);
         }
         // mark end of freeList marker
-        byte buffer[] = new byte[Disk.blockSize];
         SysLib.int2bytes(END_OF_LIST, buffer, 0);
-        SysLib.rawwrite(this.totalBlocks -1, buffer);
+        FileSystem.writeBlock(this.totalBlocks -1, buffer);
+        BlockPool.put(buffer);
         this.sync();
     }
 
+    /**
+     * The version a format writes: FORMAT_SHORT, or the format named by
+     * -Dthreados.fs.format. FORMAT_SHORT is refused for a disk whose block
+     * numbers do not fit in 16 bits, and FORMAT_INT used instead.
+     */
+    private static int newVersion(int totalBlocks) {
+        String name = System.getProperty(FORMAT_PROPERTY, "short");
+        if (name.equalsIgnoreCase("int")) {
+            return Inode.FORMAT_INT;
+        }
+        if (name.equalsIgnoreCase("extent")) {
+            return Inode.FORMAT_EXTENT;
+        }
+        if (totalBlocks - 1 > Short.MAX_VALUE) {
+            SysLib.cerr("threadOS: " + totalBlocks + " blocks are too many for "
+                        + "the short format, using int\n");
+            return Inode.FORMAT_INT;
+        }
+        return Inode.FORMAT_SHORT;
+    }
+
     /**
      * write back totalBlocks, inodeBlocks, and freeList to disk
      */
     public void sync() {
-        byte superBlock[] = new byte[Disk.blockSize];
+        byte superBlock[] = BlockPool.getZeroed();
         // convert and store in buffer using offset
         SysLib.int2bytes(this.totalBlocks, superBlock, 0);
         SysLib.int2bytes(this.inodeBlocks, superBlock, 4);
         SysLib.int2bytes(this.freeList, superBlock, 8);
+        SysLib.int2bytes(this.version, superBlock, 12);
         // write to disk
-        SysLib.rawwrite(0, superBlock);
+        FileSystem.writeBlock(0, superBlock);
+        BlockPool.put(superBlock);
     }
 
     /**
@@ -102,10 +144,11 @@ public class SuperBlock {
         }
         int freeBlock = this.freeList;
         // read the 4 bytes, that holds the next free block
-        byte buffer[] = new byte[Disk.blockSize];
-        SysLib.rawread(freeBlock, buffer);
+        byte buffer[] = BlockPool.get();
+        FileSystem.readBlock(freeBlock, buffer);
         // convert this read bytes, into ints
         this.freeList = SysLib.bytes2int(buffer, 0);
+        BlockPool.put(buffer);
         return freeBlock;
     }
 
@@ -114,14 +157,15 @@ public class SuperBlock {
      */
     public boolean returnBlock(int blockNumber) {
         //SysLib.cout(blockNumber + "\n");
-        if(blockNumber > -1 && blockNumber < 1000) {
+        if(blockNumber > -1 && blockNumber < this.totalBlocks) {
             // set blockNumber's pointer to END OF LIST marker
-            byte buffer[] = new byte[Disk.blockSize];
+            byte buffer[] = BlockPool.get();
             for(int i = 0; i < Disk.blockSize; i++) {
                 buffer[i] = 0;  // intialize all blocks to zero
             }
             SysLib.int2bytes(this.freeList, buffer, 0);
-            SysLib.rawwrite(blockNumber, buffer);
+            FileSystem.writeBlock(blockNumber, buffer);
+            BlockPool.put(buffer);
             this.freeList = blockNumber;
             return true;
         }
@@ -31,6 +31,12 @@ public class SysLib {
 				 0, 0, null );
     }
 
+    // a disk interrupt for the request issued by the given thread
+    public static int disk( Thread owner ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
+				 0, 0, owner );
+    }
+
     public static int cin( StringBuffer s ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.READ, 0, s );
@@ -56,6 +62,20 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // reads blkNumbers[i] into b at i * 512, for every i, in one request
+    public static int rawreadv( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // writes b at i * 512 to blkNumbers[i], for every i, in one request
+    public static int rawwritev( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -81,6 +101,65 @@ public class SysLib {
 				 Kernel.CSYNC, 0, null );
     }
 
+    // readv/writev through the cache: cached blocks are used, the rest
+    // move to or from disk in one request (see Cache.readv)
+    public static int creadv( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // the same, for blocks the caller will not read again: cached ones
+    // become the cache's next victims instead of its most recent
+    public static int creadv( int[] blkNumbers, byte[] b, boolean noReuse ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, noReuse ? 1 : 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // reads length bytes of the blocks, from skip bytes into the first,
+    // to b at offset; cached blocks are copied straight from the cache
+    public static int creadv( int[] blkNumbers, int skip, byte[] b,
+			      int offset, int length, boolean noReuse ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADR, noReuse ? 1 : 0,
+				 new Object[] { blkNumbers, b,
+						new int[] { skip, offset,
+							    length } } );
+    }
+
+    public static int cwritev( int[] blkNumbers, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEV, 0,
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // asks the cache to load blkNumbers in the background; returns at once
+    public static int cprefetch( int[] blkNumbers ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPREFETCH, 0, blkNumbers );
+    }
+
+    // the same, loading them as the cache's next victims (see creadv)
+    public static int cprefetch( int[] blkNumbers, boolean noReuse ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPREFETCH, noReuse ? 1 : 0,
+				 blkNumbers );
+    }
+
+    // appends cache and disk statistics, one line each, to s
+    public static int stats( StringBuffer s ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.STATS, 0, s );
+    }
+
+    // resizes the cache to blocks pages (0: its share of the heap) and
+    // returns the new size; blocks < 0 only returns the size
+    public static int csize( int blocks ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CSIZE, blocks, null );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
@@ -167,4 +246,11 @@ public class SysLib {
     public static int fsize(int var0) {
         return Kernel.interrupt(1, 16, var0, null);
     }
+
+    // Tells the file system how the file will be read, one of the
+    // FileSystem.ADVICE_ values; offset and length matter to WILLNEED only
+    public static int fadvise(int fd, int advice, int offset, int length) {
+        int[] arr = new int[]{advice, offset, length};
+        return Kernel.interrupt(1, 27, fd, arr);
+    }
 }
@@ -0,0 +1,109 @@
+import java.util.*;
+
+// ARC (Megiddo and Modha). Resident pages are split between t1, blocks
+// used once lately, and t2, blocks used at least twice. The ghost lists
+// b1 and b2 remember the ids of blocks recently evicted from each. A miss
+// that hits a ghost shows which side was cut too short, and moves the
+// target size p of t1 that way, so the cache adapts between recency and
+// frequency. A scan only ever fills t1, which is what keeps it from
+// flushing the blocks in t2.
+public class ArcPolicy implements ReplacementPolicy {
+    private int c;                 // pages
+    private int p = 0;             // target size of t1
+    private PageList t1;
+    private PageList t2;
+    private LinkedHashSet<Integer> b1; // ghosts of t1, oldest first
+    private LinkedHashSet<Integer> b2; // ghosts of t2, oldest first
+    private int blocks[];          // block held by each page
+    private boolean frequent;      // the missing block was a ghost
+    private boolean inB2;          // ... of t2
+    private boolean dropT1;        // t1 and b1 fill the directory's half
+
+    public ArcPolicy( int pages ) {
+	c = pages;
+	t1 = new PageList( pages );
+	t2 = new PageList( pages );
+	b1 = new LinkedHashSet<Integer>( );
+	b2 = new LinkedHashSet<Integer>( );
+	blocks = new int[pages];
+    }
+
+    private static void removeOldest( LinkedHashSet<Integer> ghosts ) {
+	Iterator<Integer> oldest = ghosts.iterator( );
+	oldest.next( );
+	oldest.remove( );
+    }
+
+    public void hit( int page ) {
+	t1.remove( page );
+	t2.remove( page );
+	t2.addFirst( page );
+    }
+
+    public void missed( int blockId ) {
+	Integer id = Integer.valueOf( blockId );
+	inB2 = false;
+	dropT1 = false;
+	if ( b1.contains( id ) ) {
+	    p = Math.min( c, p + Math.max( b2.size( ) / b1.size( ), 1 ) );
+	    b1.remove( id );
+	    frequent = true;
+	} else if ( b2.contains( id ) ) {
+	    p = Math.max( 0, p - Math.max( b1.size( ) / b2.size( ), 1 ) );
+	    b2.remove( id );
+	    frequent = true;
+	    inB2 = true;
+	} else {
+	    frequent = false;
+	    // keep the directory at 2c blocks, t1 and b1 at c
+	    int l1 = t1.size( ) + b1.size( );
+	    int total = l1 + t2.size( ) + b2.size( );
+	    if ( l1 >= c ) {
+		if ( t1.size( ) < c )
+		    removeOldest( b1 );
+		else
+		    dropT1 = true;
+	    } else if ( total >= 2 * c && b2.size( ) > 0 )
+		removeOldest( b2 );
+	}
+    }
+
+    public int victim( ) {
+	if ( dropT1 ) { // evicted without a ghost
+	    dropT1 = false;
+	    return t1.removeLast( );
+	}
+	int page;
+	if ( t1.size( ) > 0 &&
+	     ( t1.size( ) > p || ( inB2 && t1.size( ) == p ) ||
+	       t2.size( ) == 0 ) ) {
+	    page = t1.removeLast( );
+	    b1.add( Integer.valueOf( blocks[page] ) );
+	} else {
+	    page = t2.removeLast( );
+	    b2.add( Integer.valueOf( blocks[page] ) );
+	}
+	return page;
+    }
+
+    public void loaded( int page, int blockId ) {
+	blocks[page] = blockId;
+	if ( frequent )
+	    t2.addFirst( page );
+	else
+	    t1.addFirst( page );
+    }
+
+    public void released( int page ) {
+	t1.remove( page );
+	t2.remove( page );
+    }
+
+    // to the LRU end of t1, where replacement takes from first while t1
+    // is over its target
+    public void demote( int page ) {
+	t1.remove( page );
+	t2.remove( page );
+	t1.addLast( page );
+    }
+}
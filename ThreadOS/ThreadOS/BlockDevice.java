@@ -0,0 +1,18 @@
+// What the Kernel needs from a disk: a Disk, or a volume built out of
+// several Disks. Requests are queued and served asynchronously. When the
+// request a thread issued is done, the device raises one disk interrupt
+// for that thread, and testAndResetReady( ) then returns true on it.
+// A thread has at most one request outstanding at a time.
+public interface BlockDevice {
+    public boolean read( int blockId, byte buffer[] );
+    public boolean write( int blockId, byte buffer[] );
+    public boolean readv( int blocks[], byte buffer[] );
+    public boolean writev( int blocks[], byte buffer[] );
+    public boolean sync( );
+    public boolean testAndResetReady( );
+
+    public void setPolicy( int policy ); // one of Disk.FCFS, SCAN, C_LOOK
+    public String report( );             // modeled times, see Disk.report
+    public String stats( );              // request counts, see Disk.stats
+    public void start( );                // starts the disk thread(s)
+}
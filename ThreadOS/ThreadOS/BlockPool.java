@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+
+// Reusable block buffers, so the kernel and the file system do not leave
+// a garbage array behind for every block they move.
+//
+// get( ) hands out a byte array of one block, get( n ) one of at least n
+// blocks (the next power of two), and put( ) takes it back once nobody
+// uses it any more. Their contents are whatever the last user left;
+// getZeroed( ) clears them first. Each size keeps at most a few free
+// arrays, so the pool never holds much more than POOL_BLOCKS blocks per
+// size; arrays of other sizes, and those over a full size, are left to the
+// garbage collector.
+//
+// getFrame( ) and putFrame( ) do the same for the Cache's pages, as
+// ByteBuffers. Booting with -Dthreados.buffers=direct backs them with
+// direct buffers, allocated SLAB_BLOCKS pages at a time outside the Java
+// heap, so a large cache is neither copied nor scanned by the collector.
+public class BlockPool {
+    private static final int MAX_CLASS = 6;       // pooled arrays: 1..64 blocks
+    private static final int POOL_BLOCKS = 128;   // kept free per size
+    private static final int SLAB_BLOCKS = 64;    // direct frames per slab
+    private static final boolean direct =
+	"direct".equalsIgnoreCase( System.getProperty( "threados.buffers" ) );
+
+    private static byte free[][][] = new byte[MAX_CLASS + 1][][];
+    private static int freeCount[] = new int[MAX_CLASS + 1];
+    private static ByteBuffer frames[] = new ByteBuffer[SLAB_BLOCKS];
+    private static int frameCount = 0;
+    private static long allocated = 0; // arrays and frames created
+    private static long reused = 0;    // handed out again from the pool
+
+    static {
+	for ( int k = 0; k <= MAX_CLASS; k++ )
+	    free[k] = new byte[Math.max( 2, POOL_BLOCKS >> k )][];
+    }
+
+    public static boolean isDirect( ) {
+	return direct;
+    }
+
+    // the size class of n blocks, or -1 if n is too large to pool
+    private static int sizeClass( int blocks ) {
+	int k = 0;
+	while ( ( 1 << k ) < blocks )
+	    k++;
+	return ( k <= MAX_CLASS ) ? k : -1;
+    }
+
+    // One block
+    public static byte[] get( ) {
+	return get( 1 );
+    }
+
+    // At least blocks blocks
+    public static synchronized byte[] get( int blocks ) {
+	int k = sizeClass( blocks );
+	if ( k == -1 ) {
+	    allocated++;
+	    return new byte[blocks * Disk.blockSize];
+	}
+	if ( freeCount[k] > 0 ) {
+	    reused++;
+	    byte buffer[] = free[k][--freeCount[k]];
+	    free[k][freeCount[k]] = null;
+	    return buffer;
+	}
+	allocated++;
+	return new byte[( 1 << k ) * Disk.blockSize];
+    }
+
+    // One block of zeros
+    public static byte[] getZeroed( ) {
+	byte buffer[] = get( 1 );
+	java.util.Arrays.fill( buffer, ( byte )0 );
+	return buffer;
+    }
+
+    // Takes buffer back; the caller must not touch it afterwards
+    public static synchronized void put( byte buffer[] ) {
+	if ( buffer == null || buffer.length % Disk.blockSize != 0 )
+	    return;
+	int blocks = buffer.length / Disk.blockSize;
+	int k = sizeClass( blocks );
+	if ( k == -1 || ( 1 << k ) != blocks || freeCount[k] == free[k].length )
+	    return;
+	free[k][freeCount[k]++] = buffer;
+    }
+
+    // A page for the cache, direct or on the heap
+    public static synchronized ByteBuffer getFrame( ) {
+	if ( frameCount == 0 ) {
+	    if ( direct == false ) {
+		allocated++;
+		return ByteBuffer.wrap( new byte[Disk.blockSize] );
+	    }
+	    // carve a slab up; the slab lives as long as any of its frames
+	    ByteBuffer slab =
+		ByteBuffer.allocateDirect( SLAB_BLOCKS * Disk.blockSize );
+	    for ( int i = 0; i < SLAB_BLOCKS; i++ ) {
+		slab.limit( ( i + 1 ) * Disk.blockSize );
+		slab.position( i * Disk.blockSize );
+		frames[frameCount++] = slab.slice( );
+	    }
+	    allocated += SLAB_BLOCKS;
+	    reused--; // the first of them is counted below
+	}
+	reused++;
+	ByteBuffer frame = frames[--frameCount];
+	frames[frameCount] = null;
+	return frame;
+    }
+
+    // Takes a page back. Direct frames are kept for the next getFrame( )
+    // however many there are, since their slab cannot be freed piecemeal.
+    public static synchronized void putFrame( ByteBuffer frame ) {
+	if ( frame == null || frame.isDirect( ) != direct )
+	    return;
+	if ( direct == false )
+	    return; // heap pages are left to the collector
+	if ( frameCount == frames.length ) {
+	    ByteBuffer larger[] = new ByteBuffer[frames.length * 2];
+	    System.arraycopy( frames, 0, larger, 0, frameCount );
+	    frames = larger;
+	}
+	frames[frameCount++] = frame;
+    }
+
+    public static synchronized String stats( ) {
+	return "allocated=" + allocated + " reused=" + reused +
+	    ( direct ? " direct" : "" );
+    }
+}
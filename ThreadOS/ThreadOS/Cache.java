@@ -0,0 +1,555 @@
+import java.util.*;
+
+// A write-back disk block cache. Which page gives way to a new block is up
+// to a ReplacementPolicy; booting with -Dthreados.cache.policy=NAME picks
+// one of "second-chance" (the default), "arc", "2q" or "lru-k" (LRU-2;
+// "lru-3" and so on for other K).
+// Single blocks are kept in the cache: a read miss loads the block from
+// disk, and a write only marks its page dirty until the page is evicted
+// or the cache is synced. Vectors (readv/writev) are usually large file
+// transfers, so they do not claim pages: they use the pages that already
+// hold their blocks and move everything else in one disk request.
+//
+// The pages are split into segments (see CacheSegment), and block b lives
+// in segment b % segments, so consecutive blocks spread over all of them.
+// Each segment has its own lock and replacement state; accesses to
+// different segments run in parallel. -Dthreados.cache.segments=N sets
+// the count; by default there is one per processor, but never fewer than
+// MIN_SEGMENT_PAGES pages in a segment.
+//
+// prefetch( ) queues blocks for a background thread that loads them into
+// the cache, so a sequential reader finds its next blocks already there.
+// Blocks read or prefetched with noReuse are put at the eviction end of
+// the replacement order (ReplacementPolicy.demote), so a file read once
+// does not push the blocks others reuse out of the cache.
+// Another thread, started by startFlusher( ), writes dirty pages back
+// before eviction has to: a segment's whole dirty set once dirtyPercent of
+// its pages are dirty, and otherwise the pages dirty for maxAge ms or more.
+// Either way they go out in block order in one disk request per segment.
+//
+// resize( ) changes the number of pages at run time; the segment count
+// stays as it was at boot. The cache never takes more than heapPercent of
+// the heap that is free (counting its own pages as free), and a size of
+// 0 asks for exactly that much.
+//
+// The raw syscalls go around the cache, so the Kernel has it write back
+// or drop its copies of their blocks first (beforeRaw); the cache's own
+// misses and write-backs go to the disk through Kernel.rawread and the
+// like, which skip that step.
+public class Cache {
+    private static final int MIN_SEGMENT_PAGES = 16;
+    private static final int MAX_PREFETCHES = 16; // queued prefetch( ) calls
+    private static final int FLUSH_PERIOD = 100;  // ms between flusher rounds
+    private static final int PAGE_OVERHEAD = 64;  // heap bytes per page beyond
+                                                  // the block: entry, index
+
+    private int blockSize;
+    private CacheSegment segments[];
+    private int cacheBlocks;
+    private String policyName;
+    private int heapPercent;
+    private Vector<Prefetch> prefetches = new Vector<Prefetch>( ); // requests
+    private Thread prefetcher = null;          // started on first use
+    private boolean prefetcherIdle = false;    // waiting for prefetches
+    private int dirtyPercent = 0;              // 0: no dirty-ratio flushes
+    private int maxAge = 0;                    // 0: no age flushes
+    private Object flushes = new Object( );    // wakes the flusher up
+    private Thread flusher = null;
+    private boolean flusherIdle = false;       // waiting on flushes
+    private boolean recheck = false;           // a segment went over the
+                                               // ratio while it was busy
+    private SimLock resizing = new SimLock( ); // one resize( ) at a time
+
+    private static class Prefetch {
+	public int blocks[];
+	public boolean noReuse;
+
+	public Prefetch( int blocks[], boolean noReuse ) {
+	    this.blocks = blocks;
+	    this.noReuse = noReuse;
+	}
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, null, 0, 25 );
+    }
+
+    // cacheBlocks <= 0 sizes the cache to heapPercent of the free heap;
+    // segments <= 0 picks the default count
+    public Cache( int blockSize, int cacheBlocks, String policyName,
+		  int segments, int heapPercent ) {
+	this.blockSize = blockSize;
+	this.policyName = policyName;
+	this.heapPercent = Math.max( 1, Math.min( heapPercent, 100 ) );
+	int limit = heapLimit( );
+	cacheBlocks = ( cacheBlocks > 0 ) ? Math.min( cacheBlocks, limit )
+	    : limit;
+	this.cacheBlocks = cacheBlocks;
+	if ( segments <= 0 )
+	    segments = Math.min( Runtime.getRuntime( ).availableProcessors( ),
+				 cacheBlocks / MIN_SEGMENT_PAGES );
+	segments = Math.max( 1, Math.min( segments, cacheBlocks ) );
+
+	this.segments = new CacheSegment[segments];
+	for ( int i = 0; i < segments; i++ ) {
+	    // share the pages out, the first ones taking the remainder
+	    int pages = cacheBlocks / segments +
+		( ( i < cacheBlocks % segments ) ? 1 : 0 );
+	    this.segments[i] =
+		new CacheSegment( blockSize, pages,
+				  createPolicy( policyName, pages ) );
+	}
+    }
+
+    // Builds a replacement policy by its boot name (see above)
+    public static ReplacementPolicy createPolicy( String name, int pages ) {
+	if ( name == null || name.equalsIgnoreCase( "second-chance" ) )
+	    return new SecondChancePolicy( pages );
+	if ( name.equalsIgnoreCase( "arc" ) )
+	    return new ArcPolicy( pages );
+	if ( name.equalsIgnoreCase( "2q" ) )
+	    return new TwoQueuePolicy( pages );
+	if ( name.toLowerCase( ).startsWith( "lru-" ) ) {
+	    try {
+		String k = name.substring( 4 );
+		return new LruKPolicy( pages, k.equalsIgnoreCase( "k" ) ? 2
+				       : Integer.parseInt( k ) );
+	    } catch ( NumberFormatException e ) {
+	    }
+	}
+	SysLib.cerr( "threadOS: unknown cache policy " + name + "\n" );
+	return new SecondChancePolicy( pages );
+    }
+
+    // Pages that fit in heapPercent of the free heap, this cache's own
+    // pages included
+    private int heapLimit( ) {
+	Runtime runtime = Runtime.getRuntime( );
+	long free = runtime.maxMemory( ) -
+	    ( runtime.totalMemory( ) - runtime.freeMemory( ) ) +
+	    ( long )cacheBlocks * ( blockSize + PAGE_OVERHEAD );
+	long pages = free / 100 * heapPercent / ( blockSize + PAGE_OVERHEAD );
+	return ( int )Math.max( 1, Math.min( pages, Integer.MAX_VALUE ) );
+    }
+
+    public int getBlocks( ) {
+	return cacheBlocks;
+    }
+
+    // Gives the cache cacheBlocks pages, or as many as the heap limit
+    // allows, or exactly that many for 0; returns the new size. Dirty pages
+    // are written back first, and when a segment shrinks its replacement
+    // policy picks the blocks that leave. Replacement history starts over.
+    public int resize( int cacheBlocks ) {
+	resizing.lock( );
+	try {
+	    int limit = heapLimit( );
+	    cacheBlocks = ( cacheBlocks > 0 ) ? Math.min( cacheBlocks, limit )
+		: limit;
+	    cacheBlocks = Math.max( cacheBlocks, segments.length );
+	    int total = 0; // a segment that cannot write back keeps its size
+	    for ( int i = 0; i < segments.length; i++ ) {
+		int pages = cacheBlocks / segments.length +
+		    ( ( i < cacheBlocks % segments.length ) ? 1 : 0 );
+		total += segments[i].resize( pages,
+					     createPolicy( policyName, pages ) );
+	    }
+	    this.cacheBlocks = total;
+	    return total;
+	} finally {
+	    resizing.unlock( );
+	}
+    }
+
+    private CacheSegment segmentOf( int blockId ) {
+	return segments[ blockId % segments.length ];
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	return segmentOf( blockId ).read( blockId, buffer );
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	CacheSegment segment = segmentOf( blockId );
+	boolean written = segment.write( blockId, buffer );
+	dirtied( segment );
+	return written;
+    }
+
+    // Wakes the flusher up when segment has gone over the dirty ratio, or
+    // under the virtual clock when it sleeps for want of dirty pages. A
+    // flusher busy writing back waits for the disk, not on flushes, so it
+    // is not woken then; recheck has it start its next round at once.
+    private void dirtied( CacheSegment segment ) {
+	synchronized ( flushes ) {
+	    if ( overDirty( segment ) )
+		recheck = true;
+	    if ( flusherIdle && ( recheck || SimClock.isVirtual( ) ) ) {
+		SimClock.wake( flusher, flushes );
+		flushes.notify( );
+	    }
+	}
+    }
+
+    private boolean overDirty( CacheSegment segment ) {
+	return dirtyPercent > 0 &&
+	    segment.getDirty( ) * 100 >= dirtyPercent * segment.getPages( );
+    }
+
+    private boolean validVector( int blocks[], byte buffer[] ) {
+	if ( blocks == null || buffer == null ||
+	     buffer.length < blocks.length * blockSize )
+	    return false;
+	for ( int i = 0; i < blocks.length; i++ )
+	    if ( blocks[i] < 0 )
+		return false;
+	return true;
+    }
+
+    // Reads blocks[i] into buffer at i * blockSize. Cached blocks are
+    // copied out; the others come from disk in one request, taken without
+    // any segment's lock.
+    public boolean readv( int blocks[], byte buffer[] ) {
+	return readv( blocks, buffer, false );
+    }
+
+    // The same, demoting the cached blocks it reads (see above)
+    public boolean readv( int blocks[], byte buffer[], boolean noReuse ) {
+	if ( validVector( blocks, buffer ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong vector for creadv\n" );
+	    return false;
+	}
+	return readRange( blocks, 0, buffer, 0, blocks.length * blockSize,
+			  noReuse );
+    }
+
+    // Reads length bytes of the blocks, starting skip bytes into the
+    // first, to buffer at offset. A cached piece is copied from its page
+    // straight into buffer; the missing blocks are all read from disk in
+    // one request, straight into buffer too when they are the whole of
+    // it, and otherwise through a pooled array.
+    public boolean readv( int blocks[], int skip, byte buffer[], int offset,
+			  int length, boolean noReuse ) {
+	if ( blocks == null || buffer == null || skip < 0 ||
+	     skip >= blockSize || offset < 0 || length < 0 ||
+	     offset + length > buffer.length ||
+	     skip + ( long )length > ( long )blocks.length * blockSize ) {
+	    SysLib.cerr( "threadOS: a wrong range for creadv\n" );
+	    return false;
+	}
+	for ( int i = 0; i < blocks.length; i++ )
+	    if ( blocks[i] < 0 ) {
+		SysLib.cerr( "threadOS: a wrong range for creadv\n" );
+		return false;
+	    }
+	return readRange( blocks, skip, buffer, offset, length, noReuse );
+    }
+
+    private boolean readRange( int blocks[], int skip, byte buffer[],
+			       int offset, int length, boolean noReuse ) {
+	int count = ( skip + length + blockSize - 1 ) / blockSize;
+	boolean cached[] = new boolean[count];
+	int misses = 0;
+	for ( int i = 0; i < count; i++ ) {
+	    int from = ( i == 0 ) ? skip : 0;
+	    int at = i * blockSize - skip + from; // bytes into the range
+	    int piece = Math.min( blockSize - from, length - at );
+	    cached[i] = segmentOf( blocks[i] ).readCached( blocks[i], from,
+							   buffer, offset + at,
+							   piece, true,
+							   noReuse );
+	    if ( cached[i] == false )
+		misses++;
+	}
+	if ( misses == 0 )
+	    return true;
+
+	int missed[] = new int[misses];
+	for ( int i = 0, k = 0; i < count; i++ )
+	    if ( cached[i] == false )
+		missed[k++] = blocks[i];
+	if ( misses == count && skip == 0 && offset == 0 &&
+	     length == count * blockSize ) {
+	    // whole blocks, all missing, to the start of buffer: the disk
+	    // lays them out exactly as the caller wants them
+	    if ( Kernel.rawreadv( missed, buffer ) == Kernel.ERROR )
+		return false;
+	    for ( int i = 0; i < count; i++ ) // see below
+		segmentOf( blocks[i] ).readCached( blocks[i], 0, buffer,
+						   i * blockSize, blockSize,
+						   false, noReuse );
+	    return true;
+	}
+	byte data[] = BlockPool.get( misses );
+	if ( Kernel.rawreadv( missed, data ) == Kernel.ERROR ) {
+	    BlockPool.put( data );
+	    return false;
+	}
+	for ( int i = 0, k = 0; i < count; i++ ) {
+	    if ( cached[i] )
+		continue;
+	    int from = ( i == 0 ) ? skip : 0;
+	    int at = i * blockSize - skip + from;
+	    int piece = Math.min( blockSize - from, length - at );
+	    // a block cached by a write since then is newer than the disk's
+	    if ( segmentOf( blocks[i] ).readCached( blocks[i], from, buffer,
+						    offset + at, piece,
+						    false, noReuse ) == false )
+		System.arraycopy( data, k * blockSize + from,
+				  buffer, offset + at, piece );
+	    k++;
+	}
+	BlockPool.put( data );
+	return true;
+    }
+
+    // Writes blocks[i] from buffer at i * blockSize. Cached blocks are
+    // written into their pages; the others go to disk in one request.
+    // (Writing those through too would race with the write-back of an
+    // older dirty copy.)
+    public boolean writev( int blocks[], byte buffer[] ) {
+	if ( validVector( blocks, buffer ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong vector for cwritev\n" );
+	    return false;
+	}
+	boolean cached[] = new boolean[blocks.length];
+	int misses = 0;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    cached[i] = segmentOf( blocks[i] ).writeCached( blocks[i], buffer,
+							    i * blockSize );
+	    if ( cached[i] == false )
+		misses++;
+	    else
+		dirtied( segmentOf( blocks[i] ) );
+	}
+	if ( misses == 0 )
+	    return true;
+
+	int missed[] = new int[misses];
+	byte data[] = BlockPool.get( misses );
+	for ( int i = 0, k = 0; i < blocks.length; i++ ) {
+	    if ( cached[i] )
+		continue;
+	    missed[k] = blocks[i];
+	    System.arraycopy( buffer, i * blockSize, data, k++ * blockSize,
+			      blockSize );
+	}
+	if ( Kernel.rawwritev( missed, data ) == Kernel.ERROR ) {
+	    BlockPool.put( data );
+	    return false;
+	}
+	for ( int k = 0; k < misses; k++ )
+	    segmentOf( missed[k] ).refresh( missed[k], data, k * blockSize );
+	BlockPool.put( data );
+	return true;
+    }
+
+    // Queues blocks to be loaded into the cache in the background and
+    // returns at once. At most a quarter of the cache's pages are loaded
+    // per call, so read-ahead cannot flush the whole cache, and nothing is
+    // queued while MAX_PREFETCHES calls are still waiting.
+    public void prefetch( int blocks[] ) {
+	prefetch( blocks, false );
+    }
+
+    // The same, loading the blocks demoted (see above)
+    public void prefetch( int blocks[], boolean noReuse ) {
+	if ( blocks == null || blocks.length == 0 )
+	    return;
+	synchronized ( prefetches ) {
+	    if ( prefetcher == null ) {
+		prefetcher = new Thread( ) {
+			public void run( ) {
+			    prefetchLoop( );
+			}
+		    };
+		prefetcher.setDaemon( true );
+		SimClock.attach( prefetcher );
+		prefetcher.start( );
+	    }
+	    if ( prefetches.size( ) < MAX_PREFETCHES ) {
+		prefetches.add( new Prefetch( blocks, noReuse ) );
+		if ( prefetcherIdle ) { // else it is loading, and sees the queue
+		    SimClock.wake( prefetcher, prefetches );
+		    prefetches.notify( );
+		}
+	    }
+	}
+    }
+
+    private void prefetchLoop( ) {
+	while ( true ) {
+	    synchronized ( prefetches ) {
+		while ( prefetches.size( ) == 0 ) {
+		    prefetcherIdle = true;
+		    SimClock.block( prefetches );
+		    try {
+			prefetches.wait( );
+		    } catch ( InterruptedException e ) {
+		    }
+		}
+		prefetcherIdle = false;
+	    }
+	    SimClock.resume( );
+	    Prefetch request;
+	    synchronized ( prefetches ) { // on its turn, for a fixed virtual run
+		request = prefetches.remove( 0 );
+	    }
+	    load( request.blocks, request.noReuse );
+	}
+    }
+
+    // Reads the uncached ones of blocks in one disk request and adds them
+    private void load( int blocks[], boolean noReuse ) {
+	int count = Math.min( blocks.length, Math.max( cacheBlocks / 4, 1 ) );
+	long writes[] = new long[count];
+	int missed[] = new int[count];
+	int misses = 0;
+	for ( int i = 0; i < count; i++ ) {
+	    if ( blocks[i] < 0 )
+		continue;
+	    CacheSegment segment = segmentOf( blocks[i] );
+	    writes[misses] = segment.getWrites( ); // before the disk is read
+	    if ( segment.contains( blocks[i] ) == false )
+		missed[misses++] = blocks[i];
+	}
+	if ( misses == 0 )
+	    return;
+	int vector[] = new int[misses];
+	System.arraycopy( missed, 0, vector, 0, misses );
+	byte data[] = BlockPool.get( misses );
+	if ( Kernel.rawreadv( vector, data ) != Kernel.ERROR )
+	    for ( int i = 0; i < misses; i++ )
+		segmentOf( vector[i] ).install( vector[i], data, i * blockSize,
+						writes[i], noReuse );
+	BlockPool.put( data );
+    }
+
+    // Starts the background write-back (see above); 0 turns either
+    // trigger off, and with both off there is no flusher
+    public void startFlusher( int dirtyPercent, int maxAge ) {
+	this.dirtyPercent = ( dirtyPercent > 0 && dirtyPercent <= 100 ) ?
+	    dirtyPercent : 0;
+	this.maxAge = Math.max( maxAge, 0 );
+	if ( this.dirtyPercent == 0 && this.maxAge == 0 )
+	    return;
+	flusher = new Thread( ) {
+		public void run( ) {
+		    flushLoop( );
+		}
+	    };
+	flusher.setDaemon( true );
+	SimClock.attach( flusher );
+	flusher.start( );
+    }
+
+    // Under the virtual clock a flusher waking up every FLUSH_PERIOD would
+    // keep the clock going forever, so it sleeps until a page is dirty and
+    // only then counts out its period on the SimClock. Either way a segment
+    // that went over the dirty ratio meanwhile is written back at once.
+    private void flushLoop( ) {
+	while ( true ) {
+	    synchronized ( flushes ) {
+		if ( SimClock.isVirtual( ) ) {
+		    while ( dirtyPages( ) == 0 ) {
+			flusherIdle = true;
+			SimClock.block( flushes );
+			try {
+			    flushes.wait( );
+			} catch ( InterruptedException e ) {
+			}
+		    }
+		} else if ( recheck == false ) {
+		    flusherIdle = true;
+		    try {
+			flushes.wait( FLUSH_PERIOD );
+		    } catch ( InterruptedException e ) {
+		    }
+		}
+		flusherIdle = false;
+	    }
+	    SimClock.resume( );
+	    boolean urgent;
+	    synchronized ( flushes ) { // on its turn, for a fixed virtual run
+		urgent = recheck;
+		recheck = false;
+	    }
+	    if ( SimClock.isVirtual( ) && urgent == false )
+		SimClock.delay( FLUSH_PERIOD );
+	    long now = SimClock.now( );
+	    for ( int i = 0; i < segments.length; i++ ) {
+		if ( overDirty( segments[i] ) )
+		    segments[i].writeDirty( Long.MAX_VALUE );
+		else if ( maxAge > 0 && segments[i].getDirty( ) > 0 )
+		    segments[i].writeDirty( now - maxAge );
+	    }
+	}
+    }
+
+    private int dirtyPages( ) {
+	int dirty = 0;
+	for ( int i = 0; i < segments.length; i++ )
+	    dirty += segments[i].getDirty( );
+	return dirty;
+    }
+
+    // Counts so far, e.g. "blocks=100 hits=90 misses=10 hitRatio=90% evictions=4
+    // writeBacks=6 dirty=2". Each segment counts under the lock it
+    // already holds, so keeping statistics costs nothing extra.
+    public String stats( ) {
+	long totals[] = new long[4];
+	int dirty = 0;
+	for ( int i = 0; i < segments.length; i++ ) {
+	    segments[i].addStats( totals );
+	    dirty += segments[i].getDirty( );
+	}
+	long accesses = totals[0] + totals[1];
+	return "blocks=" + cacheBlocks + " hits=" + totals[0] + " misses=" + totals[1] +
+	    " hitRatio=" + ( accesses > 0 ? 100 * totals[0] / accesses : 0 ) +
+	    "% evictions=" + totals[2] + " writeBacks=" + totals[3] +
+	    " dirty=" + dirty;
+    }
+
+    // Writes every dirty page back. The Kernel's SYNC calls this before
+    // it syncs the disk itself.
+    public void sync( ) {
+	for ( int i = 0; i < segments.length; i++ )
+	    segments[i].sync( );
+    }
+
+    // Writes every dirty page back and empties the cache
+    public void flush( ) {
+	for ( int i = 0; i < segments.length; i++ )
+	    segments[i].flush( );
+    }
+
+    // Keeps the cache coherent with a raw transfer of blocks, one that
+    // goes around it; the Kernel calls this before RAWREAD, RAWWRITE,
+    // RAWREADV and RAWWRITEV. A raw read must find the cached data on the
+    // disk, so dirty copies of its blocks are written back; a raw write
+    // makes the cached copies stale, so they are dropped, dirty or not.
+    // False if a write-back failed.
+    public boolean beforeRaw( int blocks[], boolean writing ) {
+	if ( blocks == null )
+	    return true; // the disk turns the request down
+	boolean clean = true;
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 )
+		continue;
+	    CacheSegment segment = segmentOf( blocks[i] );
+	    if ( writing )
+		segment.invalidate( blocks[i] );
+	    else if ( segment.clean( blocks[i] ) == false )
+		clean = false;
+	}
+	return clean;
+    }
+}
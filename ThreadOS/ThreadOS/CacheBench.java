@@ -0,0 +1,85 @@
+import java.util.*;
+
+// Runs the block references of a DiskTrace through each cache replacement
+// policy and reports its hit ratio:
+//   java CacheBench TRACE [pages] [second-chance] [arc] [2q] [lru-k]...
+// Every block of every traced read or write counts as one reference. To
+// see what the file system asks for, not what a cache already let
+// through, record the trace with the cache bypassed:
+//   java -Dthreados.fs.cache=off -Dthreados.disk.trace=TRACE Boot
+// The simulation places blocks as Cache does: free pages first, then the
+// policy's victim.
+public class CacheBench {
+    public static void main( String args[] ) {
+	if ( args.length < 1 ) {
+	    System.err.println( "usage: java CacheBench trace [pages] [policy]..." );
+	    System.exit( 1 );
+	}
+	Vector<DiskTrace.Entry> entries;
+	try {
+	    entries = DiskTrace.read( args[0] );
+	} catch ( java.io.IOException e ) {
+	    System.err.println( e );
+	    System.exit( 1 );
+	    return;
+	}
+
+	int pages = 10;
+	int first = 1;
+	if ( args.length > 1 && Character.isDigit( args[1].charAt( 0 ) ) ) {
+	    pages = Integer.parseInt( args[1] );
+	    first = 2;
+	}
+	String policies[] = { "second-chance", "arc", "2q", "lru-k" };
+	if ( args.length > first )
+	    policies = Arrays.copyOfRange( args, first, args.length );
+
+	System.out.println( args[0] + ": " + pages + " pages" );
+	for ( int i = 0; i < policies.length; i++ )
+	    run( entries, pages, policies[i] );
+	System.exit( 0 );
+    }
+
+    private static void run( Vector<DiskTrace.Entry> entries, int pages,
+			     String name ) {
+	ReplacementPolicy policy = Cache.createPolicy( name, pages );
+	Hashtable<Integer, Integer> pageOf =
+	    new Hashtable<Integer, Integer>( ); // block id -> page
+	int blockIn[] = new int[pages];         // page -> block id
+	int used = 0;
+	long hits = 0;
+	long misses = 0;
+
+	for ( int i = 0; i < entries.size( ); i++ ) {
+	    DiskTrace.Entry entry = entries.elementAt( i );
+	    if ( entry.op == DiskTrace.SYNC )
+		continue;
+	    for ( int j = 0; j < entry.blocks.length; j++ ) {
+		Integer block = Integer.valueOf( entry.blocks[j] );
+		Integer page = pageOf.get( block );
+		if ( page != null ) {
+		    policy.hit( page.intValue( ) );
+		    hits++;
+		    continue;
+		}
+		misses++;
+		policy.missed( block.intValue( ) );
+		int victim;
+		if ( used < pages )
+		    victim = used++;
+		else {
+		    victim = policy.victim( );
+		    pageOf.remove( Integer.valueOf( blockIn[victim] ) );
+		}
+		blockIn[victim] = block.intValue( );
+		pageOf.put( block, Integer.valueOf( victim ) );
+		policy.loaded( victim, block.intValue( ) );
+	    }
+	}
+	long references = hits + misses;
+	System.out.println( name + ": " + references + " references, " +
+			    hits + " hits, hit ratio " +
+			    ( references > 0 ? 100 * hits / references : 0 ) +
+			    "%" );
+    }
+}
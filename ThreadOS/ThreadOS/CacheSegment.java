@@ -0,0 +1,554 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// One segment of the block Cache: a share of its pages with their own
+// lock, hash index and replacement state. Every method locks only this
+// segment, so threads touching blocks of different segments never wait
+// for each other. A read miss holds the segment's lock while it loads the
+// block, so the segment stays consistent without per-page states; for
+// the same reason writeDirty( ) holds it while it writes pages back. That
+// is why the lock is a SimLock rather than the segment's monitor.
+//
+// Blocks are found through a hash index from block id to page and free
+// pages sit on a stack, so a segment of thousands of pages costs no more
+// per access than ten. The pages themselves come from the BlockPool, on
+// the heap or off it.
+public class CacheSegment {
+    private int blockSize;
+    private ByteBuffer pages[];  // the cached blocks, one per page, each
+                                 // taken from the BlockPool when first used
+    private ReplacementPolicy policy;
+    private Entry pageTable[] = null;
+    private BlockIndex index;    // block id -> page
+    private int freePages[];     // pages holding no block
+    private int freeCount;
+    private long writes = 0;     // blocks written through this segment
+    private volatile int dirtyPages = 0;
+    private long hits = 0;       // statistics, see Cache.stats
+    private long misses = 0;
+    private long evictions = 0;
+    private long writeBacks = 0;
+    private SimLock lock = new SimLock( );
+
+    private class Entry {
+	public static final int INVALID = -1;
+	public boolean dirty;
+	public long dirtySince;  // SimClock.now( ) when it became dirty
+	public int frame;        // the disk block held by this page
+
+	public Entry( ) {
+	    dirty = false;
+	    frame = INVALID;
+	}
+    }
+
+    // An open-addressing hash table from block id to page, with int keys
+    // and values so a lookup allocates nothing. Linear probing; removal
+    // shifts the rest of the probe run back instead of leaving tombstones.
+    private static class BlockIndex {
+	private int keys[];
+	private int values[];
+	private int mask;
+
+	public BlockIndex( int entries ) {
+	    int capacity = 2;
+	    while ( capacity < entries * 2 ) // keep the load under a half
+		capacity <<= 1;
+	    keys = new int[capacity];
+	    values = new int[capacity];
+	    mask = capacity - 1;
+	    Arrays.fill( keys, Entry.INVALID );
+	}
+
+	private int slot( int key ) {
+	    int h = key * 0x9E3779B9; // spread consecutive block ids
+	    return ( h ^ ( h >>> 16 ) ) & mask;
+	}
+
+	public int get( int key ) {
+	    for ( int i = slot( key ); keys[i] != Entry.INVALID;
+		  i = ( i + 1 ) & mask )
+		if ( keys[i] == key )
+		    return values[i];
+	    return -1;
+	}
+
+	public void put( int key, int value ) {
+	    int i = slot( key );
+	    while ( keys[i] != Entry.INVALID && keys[i] != key )
+		i = ( i + 1 ) & mask;
+	    keys[i] = key;
+	    values[i] = value;
+	}
+
+	public void remove( int key ) {
+	    int i = slot( key );
+	    while ( keys[i] != key ) {
+		if ( keys[i] == Entry.INVALID )
+		    return;
+		i = ( i + 1 ) & mask;
+	    }
+	    // pull back later keys whose home slot is at or before the hole
+	    int hole = i;
+	    for ( i = ( i + 1 ) & mask; keys[i] != Entry.INVALID;
+		  i = ( i + 1 ) & mask ) {
+		int home = slot( keys[i] );
+		if ( ( ( i - home ) & mask ) >= ( ( i - hole ) & mask ) ) {
+		    keys[hole] = keys[i];
+		    values[hole] = values[i];
+		    hole = i;
+		}
+	    }
+	    keys[hole] = Entry.INVALID;
+	}
+    }
+
+    public CacheSegment( int blockSize, int cacheBlocks,
+			 ReplacementPolicy policy ) {
+	this.blockSize = blockSize;
+	pages = new ByteBuffer[cacheBlocks];
+	this.policy = policy;
+	pageTable = new Entry[cacheBlocks];
+	for ( int i = 0; i < cacheBlocks; i++ )
+	    pageTable[i] = new Entry( );
+	index = new BlockIndex( cacheBlocks );
+	freePages = new int[cacheBlocks];
+	for ( int i = 0; i < cacheBlocks; i++ )
+	    freePages[i] = cacheBlocks - 1 - i; // page 0 comes off first
+	freeCount = cacheBlocks;
+    }
+
+    private int findFreePage( ) {
+	return ( freeCount > 0 ) ? freePages[--freeCount] : -1;
+    }
+
+    private void markDirty( int page ) {
+	if ( pageTable[page].dirty == false ) {
+	    pageTable[page].dirty = true;
+	    pageTable[page].dirtySince = SimClock.now( );
+	    dirtyPages++;
+	}
+    }
+
+    private void markClean( int page ) {
+	if ( pageTable[page].dirty ) {
+	    pageTable[page].dirty = false;
+	    dirtyPages--;
+	}
+    }
+
+    // Writes a dirty page back. False if the disk refused it; the page
+    // then stays dirty, since its data exists nowhere else.
+    private boolean writeBack( int victimEntry ) {
+	if ( pageTable[victimEntry].frame != Entry.INVALID &&
+	     pageTable[victimEntry].dirty == true ) {
+	    if ( writePage( victimEntry ) == Kernel.ERROR ) {
+		SysLib.cerr( "threadOS: cache could not write back block " +
+			     pageTable[victimEntry].frame + "\n" );
+		return false;
+	    }
+	    markClean( victimEntry );
+	    writeBacks++;
+	}
+	return true;
+    }
+
+    // Writes page to its block; a direct page goes through a pooled array
+    private int writePage( int page ) {
+	ByteBuffer frame = pages[page];
+	if ( frame.hasArray( ) )
+	    return Kernel.rawwrite( pageTable[page].frame, frame.array( ) );
+	byte buffer[] = BlockPool.get( );
+	getBytes( frame, 0, buffer, 0, blockSize );
+	int result = Kernel.rawwrite( pageTable[page].frame, buffer );
+	BlockPool.put( buffer );
+	return result;
+    }
+
+    // Copies length bytes of frame from position from into buffer. The
+    // position is set on a duplicate, so the frame itself never moves and
+    // readers sharing it cannot disturb each other.
+    private static void getBytes( ByteBuffer frame, int from, byte buffer[],
+				  int offset, int length ) {
+	ByteBuffer view = frame.duplicate( );
+	view.position( from );
+	view.get( buffer, offset, length );
+    }
+
+    // Copies length bytes of buffer into frame at position to
+    private static void putBytes( ByteBuffer frame, int to, byte buffer[],
+				  int offset, int length ) {
+	ByteBuffer view = frame.duplicate( );
+	view.position( to );
+	view.put( buffer, offset, length );
+    }
+
+    private int findPage( int blockId ) {
+	return index.get( blockId );
+    }
+
+    // Picks a page for blockId, writing back and unmapping whatever the
+    // page held, and maps blockId to it. -1 if the victim could not be
+    // written back; it is kept, and blockId goes uncached.
+    private int allocatePage( int blockId ) {
+	policy.missed( blockId );
+	int victimEntry = findFreePage( );
+	if ( victimEntry == -1 ) {
+	    victimEntry = policy.victim( );
+	    if ( writeBack( victimEntry ) == false ) { // put it back
+		policy.missed( pageTable[victimEntry].frame );
+		policy.loaded( victimEntry, pageTable[victimEntry].frame );
+		return -1;
+	    }
+	    evictions++;
+	    index.remove( pageTable[victimEntry].frame );
+	}
+	if ( pages[victimEntry] == null )
+	    pages[victimEntry] = BlockPool.getFrame( );
+	pageTable[victimEntry].frame = blockId;
+	index.put( blockId, victimEntry );
+	policy.loaded( victimEntry, blockId );
+	return victimEntry;
+    }
+
+    // Gives a page back, e.g. after its block failed to load
+    private void releasePage( int page ) {
+	index.remove( pageTable[page].frame );
+	pageTable[page].frame = Entry.INVALID;
+	markClean( page );
+	policy.released( page );
+	freePages[freeCount++] = page;
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	lock.lock( );
+	try {
+	    int page = findPage( blockId );
+	    if ( page != -1 ) { // hit
+		getBytes( pages[page], 0, buffer, 0, blockSize );
+		policy.hit( page );
+		hits++;
+		return true;
+	    }
+
+	    // miss
+	    misses++;
+	    page = allocatePage( blockId );
+	    if ( page == -1 ) // no page to spare: read around the cache
+		return Kernel.rawread( blockId, buffer ) != Kernel.ERROR;
+	    if ( Kernel.rawread( blockId, buffer ) == Kernel.ERROR ) {
+		releasePage( page );
+		return false;
+	    }
+	    putBytes( pages[page], 0, buffer, 0, blockSize );
+	    return true;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	lock.lock( );
+	try {
+	    writes++;
+	    int page = findPage( blockId );
+	    if ( page == -1 ) {
+		misses++;
+		page = allocatePage( blockId );
+		if ( page == -1 ) // no page to spare: write through
+		    return Kernel.rawwrite( blockId, buffer ) != Kernel.ERROR;
+	    } else {
+		hits++;
+		policy.hit( page );
+	    }
+	    putBytes( pages[page], 0, buffer, 0, blockSize );
+	    markDirty( page );
+	    return true;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Copies length bytes of blockId, from byte from on, to buffer at
+    // offset if it is cached; never loads it. count says whether this is
+    // an access for the statistics; noReuse that the reader will not want
+    // the block again, so its page is demoted instead of counted as a reuse.
+    public boolean readCached( int blockId, int from,
+			       byte buffer[], int offset,
+			       int length, boolean count,
+			       boolean noReuse ) {
+	lock.lock( );
+	try {
+	    int page = findPage( blockId );
+	    if ( page == -1 ) {
+		if ( count )
+		    misses++;
+		return false;
+	    }
+	    getBytes( pages[page], from, buffer, offset, length );
+	    if ( noReuse )
+		policy.demote( page );
+	    else
+		policy.hit( page );
+	    if ( count )
+		hits++;
+	    return true;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Writes blockId from buffer at offset into its page if it is cached,
+    // the same as write( ) does; never loads it
+    public boolean writeCached( int blockId, byte buffer[],
+				int offset ) {
+	lock.lock( );
+	try {
+	    int page = findPage( blockId );
+	    if ( page == -1 ) {
+		misses++;
+		return false;
+	    }
+	    hits++;
+	    writes++;
+	    putBytes( pages[page], 0, buffer, offset, blockSize );
+	    policy.hit( page );
+	    markDirty( page );
+	    return true;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // blockId was just written to disk from buffer at offset: brings a
+    // copy cached since then up to date, clean
+    public void refresh( int blockId, byte buffer[],
+			 int offset ) {
+	lock.lock( );
+	try {
+	    writes++;
+	    int page = findPage( blockId );
+	    if ( page == -1 )
+		return;
+	    putBytes( pages[page], 0, buffer, offset, blockSize );
+	    policy.hit( page );
+	    markClean( page );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Writes blockId back if its page is dirty, keeping it cached. False
+    // if the disk refused it.
+    public boolean clean( int blockId ) {
+	lock.lock( );
+	try {
+	    int page = findPage( blockId );
+	    return page == -1 || writeBack( page );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Drops blockId's page, dirty or not: the disk is about to get a newer
+    // copy. It counts as a write, so a concurrent install( ) of the old
+    // copy is turned away.
+    public void invalidate( int blockId ) {
+	lock.lock( );
+	try {
+	    writes++;
+	    int page = findPage( blockId );
+	    if ( page != -1 )
+		releasePage( page );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    public boolean contains( int blockId ) {
+	lock.lock( );
+	try {
+	    return findPage( blockId ) != -1;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    public long getWrites( ) {
+	lock.lock( );
+	try {
+	    return writes;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    public int getPages( ) {
+	return pageTable.length;
+    }
+
+    // Dirty pages right now; read without the lock, so only a hint
+    public int getDirty( ) {
+	return dirtyPages;
+    }
+
+    // Adds blockId, read from disk into buffer at offset, as a clean page.
+    // The disk's copy may be stale by now if anything was written through
+    // this segment since writesBefore = getWrites( ), so it is only taken
+    // when nothing was, and when blockId is not cached already. A noReuse
+    // page goes in demoted, the next to be evicted.
+    public void install( int blockId, byte buffer[], int offset,
+			 long writesBefore, boolean noReuse ) {
+	lock.lock( );
+	try {
+	    if ( writes != writesBefore || findPage( blockId ) != -1 )
+		return;
+	    int page = allocatePage( blockId );
+	    if ( page == -1 )
+		return;
+	    putBytes( pages[page], 0, buffer, offset, blockSize );
+	    if ( noReuse )
+		policy.demote( page );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Moves the cached blocks into cacheBlocks new pages, managed by
+    // newPolicy from now on. Dirty pages are written back first; if there
+    // are more blocks than pages, the current policy picks which go. If
+    // the write-back fails the segment stays as it is.
+    // Returns the pages it has now
+    public int resize( int cacheBlocks,
+		       ReplacementPolicy newPolicy ) {
+	lock.lock( );
+	try {
+	    writeDirty( Long.MAX_VALUE );
+	    if ( dirtyPages > 0 ) {
+		SysLib.cerr( "threadOS: cache not resized, dirty pages could " +
+			     "not be written back\n" );
+		return pageTable.length;
+	    }
+	    int used = pageTable.length - freeCount;
+	    while ( used > cacheBlocks ) {
+		int page = policy.victim( );
+		if ( pageTable[page].frame == Entry.INVALID )
+		    continue; // a free page under the clock hand
+		index.remove( pageTable[page].frame );
+		pageTable[page].frame = Entry.INVALID;
+		evictions++;
+		used--;
+	    }
+
+	    ByteBuffer newPages[] = new ByteBuffer[cacheBlocks];
+	    Entry newTable[] = new Entry[cacheBlocks];
+	    index = new BlockIndex( cacheBlocks );
+	    int k = 0;
+	    for ( int i = 0; i < pageTable.length; i++ ) {
+		if ( pageTable[i].frame == Entry.INVALID ) {
+		    BlockPool.putFrame( pages[i] );
+		    continue;
+		}
+		newPages[k] = pages[i];
+		newTable[k] = pageTable[i];
+		index.put( newTable[k].frame, k );
+		newPolicy.missed( newTable[k].frame );
+		newPolicy.loaded( k, newTable[k].frame );
+		k++;
+	    }
+	    freePages = new int[cacheBlocks];
+	    freeCount = 0;
+	    for ( int i = cacheBlocks - 1; i >= k; i-- ) {
+		newTable[i] = new Entry( );
+		// the lowest free page comes off first
+		freePages[freeCount++] = i;
+	    }
+	    pages = newPages;
+	    pageTable = newTable;
+	    policy = newPolicy;
+	    return cacheBlocks;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Adds this segment's hits, misses, evictions and write-backs to
+    // totals[0..3]
+    public void addStats( long totals[] ) {
+	lock.lock( );
+	try {
+	    totals[0] += hits;
+	    totals[1] += misses;
+	    totals[2] += evictions;
+	    totals[3] += writeBacks;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Writes back, in block order and in one disk request, every page
+    // that has been dirty since dirtyBefore or earlier. Returns how many.
+    public int writeDirty( long dirtyBefore ) {
+	lock.lock( );
+	try {
+	    long order[] = new long[dirtyPages];
+	    int count = 0;
+	    for ( int i = 0; i < pageTable.length && count < order.length; i++ )
+		if ( pageTable[i].dirty &&
+		     pageTable[i].dirtySince <= dirtyBefore )
+		    order[count++] = ( ( long )pageTable[i].frame << 32 ) | i;
+	    if ( count == 0 )
+		return 0;
+	    Arrays.sort( order, 0, count ); // by block, then page
+
+	    int blocks[] = new int[count];
+	    byte data[] = BlockPool.get( count );
+	    for ( int k = 0; k < count; k++ ) {
+		int page = ( int )order[k];
+		blocks[k] = pageTable[page].frame;
+		getBytes( pages[page], 0, data, k * blockSize, blockSize );
+	    }
+	    int result = Kernel.rawwritev( blocks, data );
+	    BlockPool.put( data );
+	    if ( result == Kernel.ERROR ) {
+		// one at a time, so only the pages the disk refuses stay dirty
+		int written = 0;
+		for ( int k = 0; k < count; k++ )
+		    if ( writeBack( ( int )order[k] ) )
+			written++;
+		return written;
+	    }
+	    for ( int k = 0; k < count; k++ )
+		markClean( ( int )order[k] );
+	    writeBacks += count;
+	    return count;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Writes every dirty page back
+    public void sync( ) {
+	lock.lock( );
+	try {
+	    writeDirty( Long.MAX_VALUE );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Writes every dirty page back and empties the cache, but for pages
+    // whose write-back failed
+    public void flush( ) {
+	lock.lock( );
+	try {
+	    writeDirty( Long.MAX_VALUE );
+	    for ( int i = 0; i < pageTable.length; i++ )
+		if ( pageTable[i].frame != Entry.INVALID &&
+		     pageTable[i].dirty == false )
+		    releasePage( i );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+}
@@ -0,0 +1,71 @@
+// Writes a file and reads it back sequentially in chunks that straddle
+// block boundaries (l ChunkRead [blocks] [chunk]...). A sequential reader
+// gets its next blocks prefetched and leaves dirty pages behind, so this
+// keeps the prefetcher and the flusher busy while the reader waits for
+// the disk. Run it under the virtual clock too, where every one of those
+// threads must tell the clock what it waits on, or the simulation stops:
+//   java -Dthreados.clock=virtual Boot
+public class ChunkRead extends Thread {
+    private int blocks = 40;
+    private int chunks[] = { 1541, 2105 };
+
+    public ChunkRead( String args[] ) {
+	if ( args.length > 0 )
+	    blocks = Integer.parseInt( args[0] );
+	if ( args.length > 1 ) {
+	    chunks = new int[args.length - 1];
+	    for ( int i = 1; i < args.length; i++ )
+		chunks[i - 1] = Integer.parseInt( args[i] );
+	}
+    }
+
+    public ChunkRead( ) {
+    }
+
+    public void run( ) {
+	int size = blocks * 512;
+	byte data[] = new byte[size];
+	for ( int i = 0; i < size; i++ )
+	    data[i] = ( byte )( i / 512 + i );
+	int fd = SysLib.open( "chunks", "w" );
+	if ( fd < 0 || SysLib.write( fd, data ) != size ) {
+	    SysLib.cout( "ChunkRead: could not write " + size +
+			 " bytes (wrong)\n" );
+	    SysLib.exit( );
+	    return;
+	}
+	SysLib.close( fd );
+
+	for ( int c = 0; c < chunks.length; c++ ) {
+	    SysLib.cout( "ChunkRead: " + size + " bytes in chunks of " +
+			 chunks[c] + "..." );
+	    if ( readBack( data, chunks[c] ) )
+		SysLib.cout( "successfully completed\n" );
+	}
+	SysLib.delete( "chunks" );
+	SysLib.exit( );
+    }
+
+    // Reads the file in chunk-byte pieces and compares them with data
+    private boolean readBack( byte data[], int chunk ) {
+	int fd = SysLib.open( "chunks", "r" );
+	byte buffer[] = new byte[chunk];
+	int at = 0;
+	int n;
+	while ( ( n = SysLib.read( fd, buffer ) ) > 0 ) {
+	    for ( int i = 0; i < n; i++ )
+		if ( at + i >= data.length || buffer[i] != data[at + i] ) {
+		    SysLib.cout( "byte " + ( at + i ) + " (wrong)\n" );
+		    SysLib.close( fd );
+		    return false;
+		}
+	    at += n;
+	}
+	SysLib.close( fd );
+	if ( at != data.length ) {
+	    SysLib.cout( "read " + at + " bytes (wrong)\n" );
+	    return false;
+	}
+	return true;
+    }
+}
@@ -1,165 +1,554 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Vector;
 
-public class Disk extends Thread {
+public class Disk extends Thread implements BlockDevice {
     public static final int blockSize = 512;
     private final int trackSize = 10;
     private final int transferTime = 20;
     private final int delayPerTrack = 1;
     private int diskSize;
+    private String imageName;        // the real file backing this disk
 
-    private byte data[];
+    private byte data[];             // whole image in memory (default)
+    private MappedByteBuffer mapped; // image mapped from DISK (optional)
+    private FileChannel image;       // DISK, for positional writes on SYNC
+
+    private BitSet dirty;            // blocks written since the last SYNC
+    private long lastSyncBytes;      // bytes written by the last SYNC
+    private long totalSyncBytes;     // bytes written by all SYNCs
+
+    private long served;             // requests served
+    private long totalSeekTime;      // modeled ms spent seeking/transferring
+    private long totalServiceTime;   // modeled ms from submit to completion
+    private int tracksMoved;         // tracks crossed for the current request
+    private long reads;              // READ and READV requests served
+    private long writes;             // WRITE and WRITEV requests served
+    private long syncs;              // SYNC requests served
+    private long totalTracks;        // tracks crossed by all of them
+    private DiskTrace trace;         // records served requests, if set
+
+    // Disk scheduling policies
+    public static final int FCFS = 0;   // serve requests in arrival order
+    public static final int SCAN = 1;   // sweep up, then back down (elevator)
+    public static final int C_LOOK = 2; // sweep up, then jump to lowest track
+
+    // An outstanding request and the thread waiting for it
+    private class Request {
+	int command;
+	int blockId;
+	int[] blocks;  // READV/WRITEV: the blocks, in buffer order
+	byte[] buffer;
+	Thread owner;
+	long submitTime;  // SimClock time when the owner asked
+
+	Request( int command, int blockId, byte[] buffer ) {
+	    this.command = command;
+	    this.blockId = blockId;
+	    this.buffer = buffer;
+	    this.owner = Thread.currentThread( );
+	    this.submitTime = SimClock.now( );
+	}
+
+	Request( int command, int blocks[], byte[] buffer ) {
+	    this( command, blocks[0], buffer );
+	    this.blocks = blocks;
+	}
+    }
+
+    private Vector<Request> queue;    // requests accepted but not served yet
+    private Vector<Request> finished; // served requests their owners have
+                                      // not reset
+    private Request current;  // the request being served
+    private int policy;
+    private boolean sweepUp;  // SCAN direction
 
     private int command;
     private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
+    private final int READV = 4;
+    private final int WRITEV = 5;
 
     private byte[] buffer;
+    private int[] blocks;
     private int currentBlockId;
     private int targetBlockId;
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, false );
+    }
+
+    // memoryMapped = true maps DISK into memory instead of loading it, so
+    // blocks are paged in on first use and SYNC only writes back dirty pages
+    public Disk( int totalBlocks, boolean memoryMapped ) {
+	this( totalBlocks, memoryMapped, "DISK" );
+    }
+
+    // imageName names the real file holding this disk's blocks
+    public Disk( int totalBlocks, boolean memoryMapped, String imageName ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
+	if ( diskSize > Integer.MAX_VALUE / blockSize ) {
+	    // one byte array or mapping addresses at most 2GB
+	    diskSize = Integer.MAX_VALUE / blockSize;
+	    SysLib.cerr( "threadOS: disk limited to " + diskSize + " blocks\n" );
+	}
+	this.imageName = imageName;
+	queue = new Vector<Request>( );
+	finished = new Vector<Request>( );
+	current = null;
+	policy = C_LOOK;
+	sweepUp = true;
 	command = IDLE;
-	readyBuffer = false;
 	buffer = null;
 	currentBlockId = 0;
 	targetBlockId = 0;
+	dirty = new BitSet( diskSize );
+	lastSyncBytes = 0;
+	totalSyncBytes = 0;
+	served = 0;
+	totalSeekTime = 0;
+	totalServiceTime = 0;
+	reads = 0;
+	writes = 0;
+	syncs = 0;
+	totalTracks = 0;
+	if ( memoryMapped )
+	    mapImage( );
+	else
+	    loadImage( );
+    }
+
+    private void loadImage( ) {
+	data = new byte[ diskSize * blockSize ];
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
+	    FileInputStream ifstream = new FileInputStream( imageName );
 	    int readableSize = ( ifstream.available( ) < data.length ) ?
 		ifstream.available( ) : data.length; 
 	    ifstream.read( data, 0, readableSize );
 	    ifstream.close( );
 	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    SysLib.cerr( "threadOS: " + imageName + " created\n" );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
     }
 
+    private void mapImage( ) {
+	try {
+	    File file = new File( imageName );
+	    if ( file.exists( ) == false )
+		SysLib.cerr( "threadOS: " + imageName + " created\n" );
+	    RandomAccessFile image = new RandomAccessFile( file, "rw" );
+	    // the mapping stays valid after the file is closed
+	    mapped = image.getChannel( ).map( FileChannel.MapMode.READ_WRITE, 0,
+					      (long)diskSize * blockSize );
+	    image.close( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    SysLib.cerr( "threadOS: " + imageName + " not mapped, loading it\n" );
+	    loadImage( );
+	}
+    }
+
+    // Translates a policy name given at boot ("fcfs", "scan" or "clook")
+    public static int parsePolicy( String name ) {
+	if ( name == null || name.equalsIgnoreCase( "clook" ) )
+	    return C_LOOK;
+	if ( name.equalsIgnoreCase( "scan" ) )
+	    return SCAN;
+	if ( name.equalsIgnoreCase( "fcfs" ) )
+	    return FCFS;
+	SysLib.cerr( "threadOS: unknown disk policy " + name + "\n" );
+	return C_LOOK;
+    }
+
+    // Requests queued or being served
+    public synchronized int getQueueDepth( ) {
+	return queue.size( ) + ( current != null ? 1 : 0 );
+    }
+
+    // Seek distance in tracks from the head to a block
+    public synchronized int tracksTo( int blockId ) {
+	return Math.abs( blockId / trackSize - currentBlockId / trackSize );
+    }
+
+    // Records every request served from now on; null stops recording
+    public synchronized void setTrace( DiskTrace trace ) {
+	this.trace = trace;
+    }
+
+    public synchronized void setPolicy( int policy ) {
+	this.policy = policy;
+    }
+
     public synchronized boolean read( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
 	    return false;
 	}
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+	enqueue( new Request( READ, blockId, buffer ) );
+	return true;
     }
 
     public synchronized boolean write( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
 	    return false;
 	}
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
+	enqueue( new Request( WRITE, blockId, buffer ) );
+	return true;
+    }
+
+    // Reads blocks[i] into buffer at i * blockSize, for every i, as one
+    // request. Each run of consecutive block ids costs a single seek.
+    public synchronized boolean readv( int blocks[], byte buffer[] ) {
+	if ( validVector( blocks, buffer ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong block vector for read\n" );
 	    return false;
+	}
+
+	enqueue( new Request( READV, blocks, buffer ) );
+	return true;
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
+    // Writes buffer at i * blockSize to blocks[i], for every i, as one
+    // request. Each run of consecutive block ids costs a single seek.
+    public synchronized boolean writev( int blocks[], byte buffer[] ) {
+	if ( validVector( blocks, buffer ) == false ) {
+	    SysLib.cerr( "threadOS: a wrong block vector for write\n" );
 	    return false;
+	}
+
+	enqueue( new Request( WRITEV, blocks, buffer ) );
+	return true;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
+    // Queues a request and wakes the disk up
+    private void enqueue( Request request ) {
+	queue.add( request );
+	SimClock.wake( this, this );
+	notify( );
+    }
+
+    private boolean validVector( int blocks[], byte buffer[] ) {
+	if ( blocks == null || blocks.length == 0 || buffer == null ||
+	     buffer.length < blocks.length * blockSize )
 	    return false;
+	for ( int i = 0; i < blocks.length; i++ )
+	    if ( blocks[i] < 0 || blocks[i] >= diskSize )
+		return false;
+	return true;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
+    public synchronized boolean sync( ) {
+	// SYNC stays where the head is; nothing queued after it is served first
+	enqueue( new Request( SYNC, currentBlockId, null ) );
+	// System.out.println( "DISK sync notified the disk" );
+	return true;
+    }
+
+    // True once the calling thread's request has been served; the request is
+    // then forgotten
+    public boolean testAndResetReady( ) {
+	return testAndResetReady( Thread.currentThread( ) );
+    }
+
+    // The same for a request issued by the given thread
+    public synchronized boolean testAndResetReady( Thread owner ) {
+	Request done = findFinished( owner );
+	if ( done == null )
 	    return false;
+	finished.remove( done );
+	return true;
+    }
+
+    public synchronized boolean testReady( ) {
+	return findFinished( Thread.currentThread( ) ) != null;
+    }
+
+    private Request findFinished( Thread owner ) {
+	for ( int i = 0; i < finished.size( ); i++ ) {
+	    Request request = finished.elementAt( i );
+	    if ( request.owner == owner )
+		return request;
+	}
+	return null;
+    }
+
+    // Sleeps until there is a request, then picks one. Under the virtual
+    // clock the disk first lets everybody else finish this instant, so
+    // that every request made at it is queued before it picks.
+    private void waitCommand( ) {
+	synchronized ( this ) {
+	    while ( queue.isEmpty( ) ) {
+		SimClock.block( this );
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	}
+	SimClock.resume( );
+	SimClock.settle( );
+	synchronized ( this ) {
+	    current = nextRequest( );
+	    queue.remove( current );
+	    command = current.command;
+	    buffer = current.buffer;
+	    blocks = current.blocks;
+	    targetBlockId = current.blockId;
+	    tracksMoved = 0;
+	}
+    }
+
+    // Picks the next request to serve under the current policy. A SYNC is a
+    // barrier: only requests queued ahead of it are candidates.
+    private Request nextRequest( ) {
+	int candidates = 0;
+	while ( candidates < queue.size( ) &&
+		queue.elementAt( candidates ).command != SYNC )
+	    candidates++;
+	if ( candidates == 0 || policy == FCFS )
+	    return queue.firstElement( );
+
+	int head = currentBlockId / trackSize;
+	if ( policy == SCAN ) {
+	    Request next = nearest( candidates, head, sweepUp );
+	    if ( next == null ) {
+		sweepUp = !sweepUp; // nothing left this way: turn around
+		next = nearest( candidates, head, sweepUp );
+	    }
+	    return next;
+	}
+	// C_LOOK
+	Request next = nearest( candidates, head, true );
+	if ( next == null ) // wrap around to the lowest requested track
+	    next = nearest( candidates, 0, true );
+	return next;
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
-	    try {
-		wait( );
-	    } catch ( InterruptedException e ) {
-		SysLib.cerr( e.toString( ) + "\n" );
+    // The request closest to track "from" in the given direction, among the
+    // first "candidates" requests; ties go to the earliest arrival
+    private Request nearest( int candidates, int from, boolean up ) {
+	Request best = null;
+	int bestDistance = 0;
+	for ( int i = 0; i < candidates; i++ ) {
+	    Request request = queue.elementAt( i );
+	    int distance = request.blockId / trackSize - from;
+	    if ( up == false )
+		distance = -distance;
+	    if ( distance >= 0 && ( best == null || distance < bestDistance ) ) {
+		best = request;
+		bestDistance = distance;
 	    }
-	    readyBuffer = false;
 	}
+	return best;
     }
 
     private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int tracks = Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int seekTime = transferTime + delayPerTrack * tracks;
+	tracksMoved += tracks;
+	spend( seekTime );
+	currentBlockId = targetBlockId;
+    }
+
+    // Lets the modeled time pass on the SimClock and accounts for it
+    private void spend( int milliseconds ) {
+	SimClock.delay( milliseconds );
+	synchronized ( this ) {
+	    totalSeekTime += milliseconds;
+	}
+    }
+
+    // Serves READV/WRITEV: one seek to the start of each run of consecutive
+    // blocks, then the head sweeps across the run's remaining tracks
+    private void transferVector( boolean write ) {
+	int i = 0;
+	while ( i < blocks.length ) {
+	    int end = i + 1;
+	    while ( end < blocks.length && blocks[end] == blocks[end - 1] + 1 )
+		end++;
+	    targetBlockId = blocks[i];
+	    seek( );
+	    for ( int j = i; j < end; j++ ) {
+		if ( write )
+		    writeBlock( blocks[j], j * blockSize );
+		else
+		    readBlock( blocks[j], j * blockSize );
+	    }
+	    int tracks = blocks[end - 1] / trackSize - currentBlockId / trackSize;
+	    if ( tracks > 0 ) {
+		tracksMoved += tracks;
+		spend( delayPerTrack * tracks );
+	    }
+	    currentBlockId = blocks[end - 1];
+	    i = end;
+	}
+    }
+
+    private void readBlock( int blockId, int offset ) {
+	if ( mapped != null ) {
+	    mapped.position( blockId * blockSize );
+	    mapped.get( buffer, offset, blockSize );
+	} else
+	    System.arraycopy( data, blockId * blockSize, 
+			      buffer, offset, 
+			      blockSize );
+    }
+
+    private void writeBlock( int blockId, int offset ) {
+	if ( mapped != null ) {
+	    mapped.position( blockId * blockSize );
+	    mapped.put( buffer, offset, blockSize );
+	} else
+	    System.arraycopy( buffer, offset, 
+			      data, blockId * blockSize, 
+			      blockSize );
+	dirty.set( blockId );
+    }
+
+    // Writes each run of contiguous dirty blocks to its own offset in DISK
+    // instead of rewriting the whole image
+    private void writeDirtyBlocks( ) {
+	int written = 0;
 	try {
-	    Thread.sleep( seekTime );
-	} catch( InterruptedException e ) {
+	    if ( image == null )
+		image = new RandomAccessFile( imageName, "rw" ).getChannel( );
+	    int first = dirty.nextSetBit( 0 );
+	    while ( first >= 0 ) {
+		int last = dirty.nextClearBit( first );
+		ByteBuffer run = ByteBuffer.wrap( data, first * blockSize,
+						  ( last - first ) * blockSize );
+		while ( run.hasRemaining( ) ) // array offset == file offset
+		    image.write( run, run.position( ) );
+		written += last - first;
+		first = dirty.nextSetBit( last );
+	    }
+	    dirty.clear( );
+	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
-	currentBlockId = targetBlockId;
+	countSync( written );
+    }
+
+    private synchronized void countSync( int blocks ) {
+	lastSyncBytes = (long)blocks * blockSize;
+	totalSyncBytes += lastSyncBytes;
     }
 
-    private synchronized void finishCommand( ) {
+    // Bytes the most recent SYNC wrote to DISK
+    public synchronized long getLastSyncBytes( ) {
+	return lastSyncBytes;
+    }
+
+    // Bytes all SYNCs so far have written to DISK
+    public synchronized long getTotalSyncBytes( ) {
+	return totalSyncBytes;
+    }
+
+    // Modeled times so far, e.g. "served=12 seek=300ms service=410ms ..."
+    public synchronized String report( ) {
+	return "served=" + served + " seek=" + totalSeekTime + "ms" +
+	    " service=" + totalServiceTime + "ms" +
+	    " avgService=" + ( served > 0 ? totalServiceTime / served : 0 ) +
+	    "ms";
+    }
+
+    // Request counts so far, and the bytes SYNCs wrote to DISK, e.g.
+    // "reads=10 writes=2 syncs=1 tracks=512 avgTracks=39 queue=0
+    //  lastSyncBytes=1024 syncBytes=1024"
+    public synchronized String stats( ) {
+	return "reads=" + reads + " writes=" + writes + " syncs=" + syncs +
+	    " tracks=" + totalTracks +
+	    " avgTracks=" + ( served > 0 ? totalTracks / served : 0 ) +
+	    " queue=" + getQueueDepth( ) +
+	    " lastSyncBytes=" + lastSyncBytes +
+	    " syncBytes=" + totalSyncBytes;
+    }
+
+    private synchronized Thread finishCommand( ) {
+	if ( trace != null ) {
+	    int op = ( command == SYNC ) ? DiskTrace.SYNC :
+		( command == READ || command == READV ) ? DiskTrace.READ :
+		DiskTrace.WRITE;
+	    trace.record( current.submitTime, op, current.owner, tracksMoved,
+			  ( blocks != null ) ? blocks : new int[] { targetBlockId } );
+	    if ( command == SYNC )
+		trace.flush( );
+	}
+	if ( command == SYNC )
+	    syncs++;
+	else if ( command == READ || command == READV )
+	    reads++;
+	else
+	    writes++;
+	totalTracks += tracksMoved;
+	served++;
+	totalServiceTime += SimClock.now( ) - current.submitTime;
+	finished.add( current );
+	Thread owner = current.owner;
+	current = null;
 	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+	return owner;
+    }
+
+    // Raises the disk interrupt for a finished request. Called without
+    // holding the disk's monitor; a volume built on this disk overrides it
+    // to collect its part of a larger request.
+    protected void diskInterrupt( Thread owner ) {
+	SysLib.disk( owner ); // a disk interrupt
+    }
+
+    // The disk takes part in the virtual clock's simulation from the start
+    public void start( ) {
+	SimClock.attach( this );
+	super.start( );
     }
 
     public void run ( ) {
 	
 	while ( true ) {
 	    waitCommand( );
-	    seek( );
 	    // System.out.println( "Disk: command = " + command );
 	    switch( command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		seek( );
+		readBlock( targetBlockId, 0 );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		seek( );
+		writeBlock( targetBlockId, 0 );
+		break;
+	    case READV:
+		transferVector( false );
+		break;
+	    case WRITEV:
+		transferVector( true );
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
+		seek( );
+		if ( mapped != null ) {
+		    mapped.force( ); // writes back modified pages only
+		    countSync( dirty.cardinality( ) );
+		    dirty.clear( );
+		    break;
 		}
+		writeDirtyBlocks( );
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    diskInterrupt( finishCommand( ) );
 	}
     }
 }
@@ -0,0 +1,162 @@
+import java.util.*;
+
+// Common part of the volumes built out of several Disks (StripedVolume,
+// MirroredVolume). Each member Disk has its own image file (DISK0, DISK1,
+// ...) and its own thread. A subclass splits a request into one part per
+// member; the array collects the parts as the members finish and raises
+// a single disk interrupt once the whole request is done.
+public abstract class DiskArray implements BlockDevice {
+    protected Disk members[];
+
+    private Hashtable<Thread, Request> pending; // owner -> unfinished request
+    private Vector<Thread> ready;               // owners whose requests are
+                                                // done
+
+    protected final int READ = 1;
+    protected final int WRITE = 2;
+    protected final int SYNC = 3;
+
+    // One member's share of a request
+    protected class Part {
+	int indexes[];  // positions of these blocks in the caller's buffer,
+	                // or null when buffer is the caller's buffer itself
+	int blocks[];   // member block ids
+	byte buffer[];  // data for these blocks, in order
+    }
+
+    // A request split across the members
+    protected class Request {
+	int command;
+	byte buffer[];    // the caller's buffer
+	Part parts[];     // by member, null where a member has no share
+	int outstanding;  // parts not finished yet
+
+	Request( int command, byte buffer[] ) {
+	    this.command = command;
+	    this.buffer = buffer;
+	    parts = new Part[ members.length ];
+	}
+    }
+
+    protected DiskArray( int disks, int memberSize, boolean memoryMapped ) {
+	pending = new Hashtable<Thread, Request>( );
+	ready = new Vector<Thread>( );
+	members = new Disk[ disks ];
+	for ( int i = 0; i < disks; i++ ) {
+	    final int member = i;
+	    members[i] = new Disk( memberSize, memoryMapped, "DISK" + i ) {
+		    protected void diskInterrupt( Thread owner ) {
+			partFinished( member, owner );
+		    }
+		};
+	}
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	return readv( new int[] { blockId }, buffer );
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	return writev( new int[] { blockId }, buffer );
+    }
+
+    public boolean sync( ) {
+	Request request = new Request( SYNC, null );
+	for ( int i = 0; i < members.length; i++ )
+	    request.parts[i] = new Part( );
+	submit( request );
+	return true;
+    }
+
+    protected boolean validVector( int blocks[], byte buffer[], int size ) {
+	if ( blocks == null || blocks.length == 0 || buffer == null ||
+	     buffer.length < blocks.length * Disk.blockSize ) {
+	    SysLib.cerr( "threadOS: a wrong block vector for the volume\n" );
+	    return false;
+	}
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( blocks[i] < 0 || blocks[i] >= size ) {
+		SysLib.cerr( "threadOS: a wrong blockId for the volume\n" );
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // Registers the request for the calling thread and hands every part to
+    // its member. Registration comes first: a part may finish right away.
+    protected void submit( Request request ) {
+	synchronized ( this ) {
+	    for ( int m = 0; m < members.length; m++ )
+		if ( request.parts[m] != null )
+		    request.outstanding++;
+	    pending.put( Thread.currentThread( ), request );
+	}
+	for ( int m = 0; m < members.length; m++ ) {
+	    Part part = request.parts[m];
+	    if ( part == null )
+		continue;
+	    if ( request.command == SYNC )
+		members[m].sync( );
+	    else if ( request.command == READ )
+		members[m].readv( part.blocks, part.buffer );
+	    else
+		members[m].writev( part.blocks, part.buffer );
+	}
+    }
+
+    // Called on a member's disk thread when its part of owner's request is
+    // done. The last part copies read data back and interrupts the owner.
+    private void partFinished( int member, Thread owner ) {
+	members[member].testAndResetReady( owner );
+	synchronized ( this ) {
+	    Request request = pending.get( owner );
+	    if ( request == null )
+		return;
+	    Part part = request.parts[member];
+	    if ( request.command == READ && part.indexes != null )
+		for ( int k = 0; k < part.blocks.length; k++ )
+		    System.arraycopy( part.buffer, k * Disk.blockSize,
+				      request.buffer,
+				      part.indexes[k] * Disk.blockSize,
+				      Disk.blockSize );
+	    if ( part.indexes != null )
+		BlockPool.put( part.buffer ); // a copy from the BlockPool
+	    if ( --request.outstanding > 0 )
+		return;
+	    pending.remove( owner );
+	    ready.add( owner );
+	}
+	SysLib.disk( owner ); // a disk interrupt for the whole request
+    }
+
+    public synchronized boolean testAndResetReady( ) {
+	return ready.remove( Thread.currentThread( ) );
+    }
+
+    public void setPolicy( int policy ) {
+	for ( int i = 0; i < members.length; i++ )
+	    members[i].setPolicy( policy );
+    }
+
+    public String report( ) {
+	String report = "";
+	for ( int i = 0; i < members.length; i++ )
+	    report += ( i > 0 ? "; " : "" ) + "DISK" + i + " " +
+		members[i].report( );
+	return report;
+    }
+
+    public String stats( ) {
+	String stats = "";
+	for ( int i = 0; i < members.length; i++ )
+	    stats += ( i > 0 ? "; " : "" ) + "DISK" + i + " " +
+		members[i].stats( );
+	return stats;
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < members.length; i++ )
+	    members[i].start( );
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.*;
+import java.util.*;
+
+// Feeds a recorded DiskTrace back through a fresh Disk under each given
+// scheduling policy and reports the modeled times:
+//   java -Dthreados.clock=virtual DiskReplay TRACE [fcfs] [scan] [clook]
+// Every thread in the trace gets a replay thread that issues its requests
+// in recorded order, each one after the previous has finished, so the
+// disk sees the concurrency of the recorded session. The replay disk
+// keeps its blocks in a temporary image, deleted once the replay is done,
+// and never touches DISK.
+public class DiskReplay {
+    public static void main( String args[] ) {
+	if ( args.length < 1 ) {
+	    System.err.println( "usage: java DiskReplay trace [fcfs|scan|clook]..." );
+	    System.exit( 1 );
+	}
+	Vector<DiskTrace.Entry> entries;
+	try {
+	    entries = DiskTrace.read( args[0] );
+	} catch ( java.io.IOException e ) {
+	    System.err.println( e );
+	    System.exit( 1 );
+	    return;
+	}
+
+	// the disk must hold the highest block the trace touches
+	int size = 1;
+	for ( int i = 0; i < entries.size( ); i++ ) {
+	    DiskTrace.Entry entry = entries.elementAt( i );
+	    for ( int j = 0; j < entry.blocks.length; j++ )
+		size = Math.max( size, entry.blocks[j] + 1 );
+	}
+
+	String policies[] = { "fcfs", "scan", "clook" };
+	if ( args.length > 1 )
+	    policies = Arrays.copyOfRange( args, 1, args.length );
+	System.out.println( args[0] + ": " + entries.size( ) + " requests, " +
+			    size + " blocks" );
+	for ( int i = 0; i < policies.length; i++ )
+	    replay( entries, size, policies[i] );
+	System.exit( 0 );
+    }
+
+    private static void replay( Vector<DiskTrace.Entry> entries, int size,
+				String policy ) {
+	File image;
+	try {
+	    image = File.createTempFile( "REPLAY", null );
+	} catch ( IOException e ) {
+	    System.err.println( e );
+	    return;
+	}
+	image.deleteOnExit( );
+	final Object done = new Object( );
+	final Disk disk = new Disk( size, false, image.getPath( ) ) {
+		protected void diskInterrupt( Thread owner ) {
+		    synchronized ( done ) {
+			SimClock.wake( owner, done );
+			done.notifyAll( );
+		    }
+		}
+	    };
+	disk.setPolicy( Disk.parsePolicy( policy ) );
+	disk.start( );
+
+	// split the trace into the recorded threads' streams
+	Hashtable<Integer, Vector<DiskTrace.Entry>> streams =
+	    new Hashtable<Integer, Vector<DiskTrace.Entry>>( );
+	for ( int i = 0; i < entries.size( ); i++ ) {
+	    DiskTrace.Entry entry = entries.elementAt( i );
+	    Vector<DiskTrace.Entry> stream =
+		streams.get( Integer.valueOf( entry.thread ) );
+	    if ( stream == null ) {
+		stream = new Vector<DiskTrace.Entry>( );
+		streams.put( Integer.valueOf( entry.thread ), stream );
+	    }
+	    stream.add( entry );
+	}
+
+	// the replay ends when the last replayer is done; all of them are
+	// attached before any starts, so they take their turns in that order
+	long start = SimClock.now( );
+	Vector<Thread> replayers = new Vector<Thread>( );
+	for ( Enumeration<Vector<DiskTrace.Entry>> e = streams.elements( );
+	      e.hasMoreElements( ); ) {
+	    final Vector<DiskTrace.Entry> stream = e.nextElement( );
+	    Thread replayer = new Thread( ) {
+		    public void run( ) {
+			SimClock.resume( );
+			for ( int i = 0; i < stream.size( ); i++ )
+			    issue( disk, done, stream.elementAt( i ) );
+			SimClock.detach( );
+		    }
+		};
+	    replayers.add( replayer );
+	    SimClock.attach( replayer );
+	}
+	for ( int i = 0; i < replayers.size( ); i++ )
+	    replayers.elementAt( i ).start( );
+	for ( int i = 0; i < replayers.size( ); i++ ) {
+	    try {
+		replayers.elementAt( i ).join( );
+	    } catch ( InterruptedException e ) {
+	    }
+	}
+	System.out.println( policy + ": " + streams.size( ) + " threads, " +
+			    ( SimClock.now( ) - start ) + "ms, " + 
+			    disk.report( ) );
+	image.delete( );
+    }
+
+    // Issues one recorded request and waits until it has been served
+    private static void issue( Disk disk, Object done, DiskTrace.Entry entry ) {
+	byte buffer[] = new byte[ entry.blocks.length * Disk.blockSize ];
+	if ( entry.op == DiskTrace.SYNC )
+	    disk.sync( );
+	else if ( entry.op == DiskTrace.READ )
+	    disk.readv( entry.blocks, buffer );
+	else
+	    disk.writev( entry.blocks, buffer );
+	synchronized ( done ) {
+	    while ( disk.testAndResetReady( ) == false ) {
+		SimClock.block( done );
+		try {
+		    done.wait( );
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	}
+	SimClock.resume( );
+    }
+}
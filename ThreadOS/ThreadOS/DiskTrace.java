@@ -0,0 +1,110 @@
+import java.io.*;
+import java.util.*;
+
+// A block-level I/O trace. Disk records one entry per request it serves:
+// the time the request was submitted (SimClock ms), the operation, the
+// requesting thread, how many tracks the head crossed to serve it (as in
+// Disk.seek( )), and the blocks it moved. DiskReplay feeds a recorded
+// trace back through a Disk. The trace is flushed on every SYNC and
+// closed when the JVM shuts down, so a run that exits without a SYNC keeps
+// its tail.
+//
+// File layout, big-endian: int MAGIC, then per entry
+//   int time, byte op, int thread, int tracks, int count, int block[count]
+public class DiskTrace {
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int SYNC = 3;
+
+    private static final int MAGIC = 0x54524331; // "TRC1"
+
+    private DataOutputStream out; // null once closed
+
+    // One recorded request
+    public static class Entry {
+	public int time;
+	public int op;
+	public int thread;
+	public int tracks;
+	public int blocks[];
+    }
+
+    public DiskTrace( String fileName ) throws IOException {
+	out = new DataOutputStream( new BufferedOutputStream( 
+			new FileOutputStream( fileName ) ) );
+	out.writeInt( MAGIC );
+	Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+		public void run( ) {
+		    close( );
+		}
+	    } );
+    }
+
+    public synchronized void record( long time, int op, Thread thread,
+				     int tracks, int blocks[] ) {
+	if ( out == null )
+	    return;
+	try {
+	    out.writeInt( ( int )time );
+	    out.writeByte( op );
+	    out.writeInt( ( int )thread.getId( ) );
+	    out.writeInt( tracks );
+	    out.writeInt( blocks.length );
+	    for ( int i = 0; i < blocks.length; i++ )
+		out.writeInt( blocks[i] );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    public synchronized void flush( ) {
+	if ( out == null )
+	    return;
+	try {
+	    out.flush( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    // Writes what is left and closes the file; later requests go unrecorded
+    public synchronized void close( ) {
+	if ( out == null )
+	    return;
+	try {
+	    out.close( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	out = null;
+    }
+
+    // Reads a whole trace file back, in recorded order
+    public static Vector<Entry> read( String fileName ) throws IOException {
+	DataInputStream in = new DataInputStream( new BufferedInputStream(
+			new FileInputStream( fileName ) ) );
+	Vector<Entry> entries = new Vector<Entry>( );
+	try {
+	    if ( in.readInt( ) != MAGIC )
+		throw new IOException( fileName + " is not a disk trace" );
+	    while ( true ) {
+		Entry entry = new Entry( );
+		try {
+		    entry.time = in.readInt( );
+		} catch ( EOFException e ) {
+		    break;
+		}
+		entry.op = in.readByte( );
+		entry.thread = in.readInt( );
+		entry.tracks = in.readInt( );
+		entry.blocks = new int[ in.readInt( ) ];
+		for ( int i = 0; i < entry.blocks.length; i++ )
+		    entry.blocks[i] = in.readInt( );
+		entries.add( entry );
+	    }
+	} finally {
+	    in.close( );
+	}
+	return entries;
+    }
+}
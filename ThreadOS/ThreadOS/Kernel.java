@@ -36,6 +36,29 @@ public class Kernel
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+    // Vectored disk I/O: param unused, args = { int blocks[], byte b[] }
+    public final static int RAWREADV  = 20; // SysLib.rawreadv( int blks[],
+                                            //                  byte b[] )
+    public final static int RAWWRITEV = 21; // SysLib.rawwritev( int blks[],
+                                            //                   byte b[] )
+    public final static int CREADV    = 22; // SysLib.creadv( int blks[],
+                                            //                byte b[] )
+    public final static int CWRITEV   = 23; // SysLib.cwritev( int blks[],
+                                            //                 byte b[] )
+    public final static int CPREFETCH = 24; // SysLib.cprefetch( int blks[] )
+    public final static int STATS     = 25; // SysLib.stats( StringBuffer s )
+    public final static int CSIZE     = 26; // SysLib.csize( int blocks )
+    // CREADV and CPREFETCH with param 1 do not expect the blocks reused
+    public final static int ADVISE    = 27; // SysLib.fadvise( int fd,
+                                            //   int advice, int offset,
+                                            //   int length )
+    // CREADR: like CREADV, args = { int blocks[], byte b[],
+    //                               int { skip, offset, length } }
+    public final static int CREADR    = 28; // SysLib.creadv( int blks[],
+                                            //   int skip, byte b[],
+                                            //   int offset, int length,
+                                            //   boolean noReuse )
+
     // Predefined file descriptors
     public final static int STDIN  = 0;
     public final static int STDOUT = 1;
@@ -47,15 +70,19 @@ public class Kernel
 
     // System thread references
     private static Scheduler scheduler;
-    private static Disk disk;
+    private static BlockDevice disk;
     private static Cache cache;
+    private static FileSystem fs;
 
     // Synchronized Queues
     private static SyncQueue waitQueue;  // for threads to wait for their child
-    private static SyncQueue ioQueue;    // I/O queue
-
-    private final static int COND_DISK_REQ = 1; // wait condition 
-    private final static int COND_DISK_FIN = 2; // wait condition
+    private static int unjoined[];       // by tid: exited children not yet
+                                         // joined
+    private static Thread joiners[];     // by tid: the thread if it waits in
+                                         // waitQueue
+    private static SyncQueue ioQueue;    // I/O queue, one condition per tid
+    private static Object kernelIo = new Object( ); // the same for threads
+                                                    // without a tid
 
     // Standard input
     private static BufferedReader input
@@ -66,22 +93,84 @@ public class Kernel
 	TCB myTcb;
 	switch( irq ) {
 	case INTERRUPT_SOFTWARE: // System calls
+	    SimClock.resume( ); // kernel code runs on the caller's turn only
 	    switch( cmd ) { 
 	    case BOOT:
+		// the booting thread formats and loads the file system: the
+		// SimClock must wait for it until the boot is done
+		SimClock.attach( Thread.currentThread( ) );
+		SimClock.resume( );
+
 		// instantiate and start a scheduler
 		scheduler = new Scheduler( ); 
 		scheduler.start( );
 		
 		// instantiate and start a disk
-		disk = new Disk( 1000 );
+		// (java -Dthreados.disk.blocks=N Boot sizes it, default 1000)
+		int diskBlocks = Integer.getInteger( "threados.disk.blocks", 1000 );
+		// (-Dthreados.disk.mapped=true maps DISK into memory)
+		boolean mapped = Boolean.getBoolean( "threados.disk.mapped" );
+		// (-Dthreados.stripe.disks=N stripes blocks over DISK0..DISKN-1,
+		//  -Dthreados.stripe.unit=blocks per stripe unit, default 8)
+		// (-Dthreados.mirror.disks=N mirrors DISK0..DISKN-1 instead)
+		int stripes = Integer.getInteger( "threados.stripe.disks", 1 );
+		int mirrors = Integer.getInteger( "threados.mirror.disks", 1 );
+		if ( stripes > 1 )
+		    disk = new StripedVolume( diskBlocks, stripes, 
+			    Integer.getInteger( "threados.stripe.unit", 8 ),
+			    mapped );
+		else if ( mirrors > 1 )
+		    disk = new MirroredVolume( diskBlocks, mirrors, mapped );
+		else
+		    disk = new Disk( diskBlocks, mapped );
+		// (-Dthreados.disk.policy=fcfs|scan|clook orders queued requests)
+		disk.setPolicy( Disk.parsePolicy( 
+			System.getProperty( "threados.disk.policy" ) ) );
+		// (-Dthreados.disk.trace=FILE records every request for
+		//  DiskReplay; a single disk only)
+		String traceFile = System.getProperty( "threados.disk.trace" );
+		if ( traceFile != null ) {
+		    if ( disk instanceof Disk ) {
+			try {
+			    ( ( Disk )disk ).setTrace( new DiskTrace( traceFile ) );
+			} catch ( IOException e ) {
+			    SysLib.cerr( e.toString( ) + "\n" );
+			}
+		    } else
+			SysLib.cerr( "threadOS: tracing needs a single disk\n" );
+		}
 		disk.start( );
 
 		// instantiate a cache memory
-		cache = new Cache( disk.blockSize, 10 );
+		// (-Dthreados.cache.blocks=N pages, or "auto" for all that
+		//  fit in -Dthreados.cache.heap=PERCENT of the free heap)
+		String cacheBlocks = System.getProperty( "threados.cache.blocks" );
+		cache = new Cache( Disk.blockSize, 
+				   "auto".equalsIgnoreCase( cacheBlocks ) ? 0 :
+				   Integer.getInteger( "threados.cache.blocks",
+						       10 ),
+				   System.getProperty( "threados.cache.policy" ),
+				   Integer.getInteger( "threados.cache.segments",
+						       0 ),
+				   Integer.getInteger( "threados.cache.heap",
+						       25 ) );
+		// (background write-back once -Dthreados.cache.dirty=PERCENT
+		//  of a segment is dirty or a page has been for
+		//  -Dthreados.cache.age=MS; 0 turns either off)
+		cache.startFlusher( Integer.getInteger( "threados.cache.dirty",
+							50 ),
+				    Integer.getInteger( "threados.cache.age",
+							5000 ) );
 
 		// instantiate synchronized queues
-		ioQueue = new SyncQueue( );
+		ioQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 		waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+		unjoined = new int[ scheduler.getMaxThreads( ) ];
+		joiners = new Thread[ scheduler.getMaxThreads( ) ];
+
+		// instantiate a file system
+		fs = new FileSystem( diskBlocks );
+		SimClock.detach( );
 		return OK;
 	    case EXEC:
 		return sysExec( ( String[] )args );
@@ -89,39 +178,55 @@ public class Kernel
 		// get the current thread id
 		// let the current thread sleep in waitQueue under the 
 		// condition = this thread id
-		return OK; // return a child thread id who woke me up
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    joining( myTcb.getTid( ) );
+		    int child = waitQueue.enqueueAndSleep( myTcb.getTid( ) );
+		    SimClock.resume( );
+		    return child;
+		}
+		return ERROR; // return a child thread id who woke me up
 	    case EXIT:
 		// get the current thread's parent id
 		// search waitQueue for and wakes up the thread under the
 		// condition = the current thread's parent id
 		// tell the Scheduler to delete the current thread (since it is exiting)
-		return OK;
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null &&
+		     myTcb.getPid( ) != -1 ) {
+		    exiting( myTcb.getPid( ) );
+		    waitQueue.dequeueAndWakeup( myTcb.getPid( ), myTcb.getTid( ) );
+		    scheduler.deleteThread( );
+		    return OK;
+		}
+		return ERROR;
 	    case SLEEP:   // sleep a given period of milliseconds
 		scheduler.sleepThread( param ); // param = milliseconds
 		return OK;
 	    case RAWREAD: // read a block of data from disk
-		while ( disk.read( param, ( byte[] )args ) == false )
-		    ; // busy wait
-		while ( disk.testAndResetReady( ) == false )
-		    ; // busy wait
-		return OK;
+		if ( cache.beforeRaw( new int[] { param }, false ) == false )
+		    return ERROR;
+		return rawread( param, ( byte[] )args );
 	    case RAWWRITE: // write a block of data to disk
-		while ( disk.write( param, ( byte[] )args ) == false )
-		    ; // busy wait
-		while ( disk.testAndResetReady( ) == false )
-		    ; // busy wait
-		return OK;
+		if ( cache.beforeRaw( new int[] { param }, true ) == false )
+		    return ERROR;
+		return rawwrite( param, ( byte[] )args );
 	    case SYNC:     // synchronize disk data to a real file
-		while ( disk.sync( ) == false )
-		    ; // busy wait
-		while ( disk.testAndResetReady( ) == false )
-		    ; // busy wait
+		fs.sync( );
+		cache.sync( ); // dirty cached blocks go out first
+		if ( disk.sync( ) == false )
+		    return ERROR;
+		waitForDisk( );
+		if ( SimClock.isVirtual( ) ) // report the modeled disk times
+		    System.err.println( "threadOS: disk at " + SimClock.now( ) +
+					"ms: " + disk.report( ) );
 		return OK;
 	    case READ:
 		switch ( param ) {
 		case STDIN:
 		    try {
+			// the keyboard is outside the simulation
+			SimClock.block( input );
 			String s = input.readLine(); // read a keyboard input
+			SimClock.resume( );
 			if ( s == null ) {
 			    return ERROR;
 			}
@@ -142,7 +247,11 @@ public class Kernel
 		    System.out.println( "threaOS: caused read errors" );
 		    return ERROR;
 		}
-		// return FileSystem.read( param, byte args[] );
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    FileTableEntry ftEnt = myTcb.getFtEnt( param );
+		    if ( ftEnt != null )
+			return fs.read( ftEnt, ( byte[] )args );
+		}
 		return ERROR;
 	    case WRITE:
 		switch ( param ) {
@@ -155,6 +264,13 @@ public class Kernel
 		case STDERR:
 		    System.err.print( (String)args );
 		    break;
+		default:
+		    if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+			FileTableEntry ftEnt = myTcb.getFtEnt( param );
+			if ( ftEnt != null )
+			    return fs.write( ftEnt, ( byte[] )args );
+		    }
+		    return ERROR;
 		}
 		return OK;
 	    case CREAD:   // to be implemented in assignment 4
@@ -167,27 +283,104 @@ public class Kernel
 	    case CFLUSH:  // to be implemented in assignment 4
 		cache.flush( );
 		return OK;
-	    case OPEN:    // to be implemented in project
-		return OK;
-	    case CLOSE:   // to be implemented in project
-		return OK;
-	    case SIZE:    // to be implemented in project
-		return OK;
-	    case SEEK:    // to be implemented in project
+	    case OPEN:
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    String[] s = ( String[] )args;
+		    return myTcb.getFd( fs.open( s[0], s[1] ) );
+		}
+		return ERROR;
+	    case CLOSE:
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    FileTableEntry ftEnt = myTcb.getFtEnt( param );
+		    if ( ftEnt == null || fs.close( ftEnt ) == false )
+			return ERROR;
+		    if ( myTcb.returnFd( param ) != ftEnt )
+			return ERROR;
+		    return OK;
+		}
+		return ERROR;
+	    case SIZE:
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    FileTableEntry ftEnt = myTcb.getFtEnt( param );
+		    if ( ftEnt != null )
+			return fs.fsize( ftEnt );
+		}
+		return ERROR;
+	    case SEEK:
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    int[] seekArgs = ( int[] )args;
+		    FileTableEntry ftEnt = myTcb.getFtEnt( param );
+		    if ( ftEnt != null )
+			return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
+		}
+		return ERROR;
+	    case FORMAT:
+		if ( fs.format( param ) == false )
+		    return ERROR;
 		return OK;
-	    case FORMAT:  // to be implemented in project
+	    case DELETE:
+		return ( fs.delete( ( String )args ) == true ) ? OK : ERROR;
+	    case RAWREADV: // read a vector of blocks from disk in one request
+		Object[] readv = ( Object[] )args;
+		if ( cache.beforeRaw( ( int[] )readv[0], false ) == false )
+		    return ERROR;
+		return rawreadv( ( int[] )readv[0], ( byte[] )readv[1] );
+	    case RAWWRITEV: // write a vector of blocks to disk in one request
+		Object[] writev = ( Object[] )args;
+		if ( cache.beforeRaw( ( int[] )writev[0], true ) == false )
+		    return ERROR;
+		return rawwritev( ( int[] )writev[0], ( byte[] )writev[1] );
+	    case CREADV:   // read a vector of blocks through the cache
+		Object[] creadv = ( Object[] )args;
+		return cache.readv( ( int[] )creadv[0], ( byte[] )creadv[1],
+				    param == 1 ) ? OK : ERROR;
+	    case CREADR:   // read a byte range of a vector of blocks
+		           // through the cache, into the caller's buffer
+		Object[] creadr = ( Object[] )args;
+		int[] range = ( int[] )creadr[2];
+		return cache.readv( ( int[] )creadr[0], range[0],
+				    ( byte[] )creadr[1], range[1], range[2],
+				    param == 1 ) ? OK : ERROR;
+	    case CWRITEV:  // write a vector of blocks through the cache
+		Object[] cwritev = ( Object[] )args;
+		return cache.writev( ( int[] )cwritev[0],
+				     ( byte[] )cwritev[1] ) ? OK : ERROR;
+	    case CPREFETCH: // load blocks into the cache in the background
+		cache.prefetch( ( int[] )args, param == 1 );
 		return OK;
-	    case DELETE:  // to be implemented in project
+	    case ADVISE:   // an access hint on an open file,
+		           // args = { advice, offset, length }
+		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+		    int[] advice = ( int[] )args;
+		    FileTableEntry ftEnt = myTcb.getFtEnt( param );
+		    if ( ftEnt != null && fs.advise( ftEnt, advice[0], advice[1],
+						     advice[2] ) )
+			return OK;
+		}
+		return ERROR;
+	    case CSIZE:    // resize the cache, 0 to fill its heap share,
+		           // < 0 to just ask; returns the size
+		return ( param < 0 ) ? cache.getBlocks( ) : cache.resize( param );
+	    case STATS:    // cache and disk counters, as text
+		StringBuffer stats = ( StringBuffer )args;
+		stats.append( "cache: " + cache.stats( ) + "\n" );
+		stats.append( "disk: " + disk.stats( ) + "\n" );
+		stats.append( "buffers: " + BlockPool.stats( ) + "\n" );
 		return OK;
 	    }
 	    return ERROR;
 	case INTERRUPT_DISK: // Disk interrupts
 	    // wake up the thread waiting for a service completion
-	    //ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-	    // wake up the thread waiting for a request acceptance
-	    //ioQueue.dequeueAndWakeup( COND_DISK_REQ );
-
+	    // (the disk queues every request, so none waits for acceptance)
+	    myTcb = scheduler.getTcb( ( Thread )args );
+	    if ( myTcb != null ) {
+		SimClock.wake( ( Thread )args, ioQueue );
+		ioQueue.dequeueAndWakeup( myTcb.getTid( ) );
+	    } else
+		synchronized ( kernelIo ) {
+		    SimClock.wake( ( Thread )args, kernelIo );
+		    kernelIo.notifyAll( );
+		}
 	    return OK;
 	case INTERRUPT_IO:   // other I/O interrupts (not implemented)
 	    return OK;
@@ -195,6 +388,87 @@ public class Kernel
 	return OK;
     }
 
+    // The raw transfers themselves. The RAW syscalls make the cache
+    // coherent first (Cache.beforeRaw); the cache calls these directly for
+    // its own misses and write-backs, which it keeps coherent itself.
+    static int rawread( int blockId, byte buffer[] ) {
+	if ( disk.read( blockId, buffer ) == false )
+	    return ERROR;
+	waitForDisk( );
+	return OK;
+    }
+
+    static int rawwrite( int blockId, byte buffer[] ) {
+	if ( disk.write( blockId, buffer ) == false )
+	    return ERROR;
+	waitForDisk( );
+	return OK;
+    }
+
+    static int rawreadv( int blocks[], byte buffer[] ) {
+	if ( disk.readv( blocks, buffer ) == false )
+	    return ERROR;
+	waitForDisk( );
+	return OK;
+    }
+
+    static int rawwritev( int blocks[], byte buffer[] ) {
+	if ( disk.writev( blocks, buffer ) == false )
+	    return ERROR;
+	waitForDisk( );
+	return OK;
+    }
+
+    // Sleeping until the disk interrupt for my request arrives. Each served
+    // request raises exactly one interrupt, so one sleep normally suffices.
+    // Threads the scheduler does not know (the boot thread, the cache's
+    // prefetcher) have no tid to sleep on and wait on kernelIo instead.
+    private static void waitForDisk( ) {
+	TCB myTcb = scheduler.getMyTcb( );
+	if ( myTcb == null ) {
+	    synchronized ( kernelIo ) {
+		while ( disk.testAndResetReady( ) == false ) {
+		    SimClock.block( kernelIo );
+		    try {
+			kernelIo.wait( );
+		    } catch ( InterruptedException e ) {
+		    }
+		}
+	    }
+	    SimClock.resume( );
+	    return;
+	}
+	do {
+	    SimClock.block( ioQueue );
+	    ioQueue.enqueueAndSleep( myTcb.getTid( ) );
+	} while ( disk.testAndResetReady( ) == false );
+	SimClock.resume( );
+    }
+
+    // A parent joining a child that has exited already does not wait, as
+    // waitQueue remembers the exit; it only tells the SimClock it waits
+    // when no exit is pending for it.
+    private static synchronized void joining( int tid ) {
+	if ( unjoined[tid] > 0 )
+	    unjoined[tid]--;
+	else {
+	    joiners[tid] = Thread.currentThread( );
+	    SimClock.block( waitQueue );
+	}
+    }
+
+    // An exiting child wakes its parent if it waits, or leaves its exit
+    // pending for the parent's next join
+    private static synchronized void exiting( int pid ) {
+	if ( pid < 0 || pid >= joiners.length )
+	    return;
+	if ( joiners[pid] != null ) {
+	    SimClock.wake( joiners[pid], waitQueue );
+	    joiners[pid] = null;
+	} else
+	    unjoined[pid]++;
+    }
+
     // Spawning a new thread
     private static int sysExec( String args[] ) {
 	String thrName = args[0]; // args[0] has a thread name
@@ -221,8 +495,18 @@ public class Kernel
                 // with arguments
 		thrObj = thrConst.newInstance( constructorArgs );
 	    }
-	    // instantiate a new thread of this object
-	    Thread t = new Thread( (Runnable)thrObj );
+	    // instantiate a new thread of this object; one that ends without
+	    // SysLib.exit( ) must still leave the SimClock
+	    final Runnable body = ( Runnable )thrObj;
+	    Thread t = new Thread( ) {
+		    public void run( ) {
+			try {
+			    body.run( );
+			} finally {
+			    SimClock.detach( );
+			}
+		    }
+		};
 
 	    // add this thread into scheduler's circular list.
 	    TCB newTcb = scheduler.addThread( t );
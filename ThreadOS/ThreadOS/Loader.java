@@ -15,6 +15,8 @@ public class Loader extends Thread
 	SysLib.cout( "?:       print a help message\n" );
 	SysLib.cout( "q:       exit from threadOS\n" );
 	SysLib.cout( "l prog:  load prog\n" );
+	SysLib.cout( "s:       print cache and disk statistics\n" );
+	SysLib.cout( "c n:     resize the cache to n blocks (0: heap share)\n" );
     }
 
     public void run( ) {
@@ -47,6 +49,20 @@ public class Loader extends Thread
 		}
 		SysLib.join( );
 		break;
+	    case 's':
+		StringBuffer stats = new StringBuffer( );
+		SysLib.stats( stats );
+		SysLib.cout( stats.toString( ) );
+		break;
+	    case 'c':
+		try {
+		    int blocks = Integer.parseInt( cmdLine.substring( 2 ).trim( ) );
+		    SysLib.cout( "cache: " + SysLib.csize( blocks ) +
+				 " blocks\n" );
+		} catch ( RuntimeException e ) {
+		    SysLib.cerr( "usage: c blocks\n" );
+		}
+		break;
 	    case 'r':
 		break;
 	    }
@@ -0,0 +1,102 @@
+import java.util.*;
+
+// LRU-K (O'Neil, O'Neil and Weikum): evicts the page whose K-th most
+// recent use lies furthest back. Pages used fewer than K times count as
+// infinitely far back and go first, least recently used first, so a block
+// read once by a scan cannot push out one used K times. The use times of
+// recently evicted blocks are kept, so a block that comes back soon keeps
+// its history.
+public class LruKPolicy implements ReplacementPolicy {
+    private static final long NEVER = Long.MIN_VALUE / 2;
+
+    private int k;
+    private long history[][];     // per page, the last k use times, newest first
+    private int blocks[];         // block held by each page
+    private TreeMap<Long, Integer> order; // eviction key -> page
+    private long keys[];          // each page's key in order
+    private LinkedHashMap<Integer, long[]> retained; // block id -> history,
+                                                     // of evicted blocks
+    private long clock = 0;       // counts accesses
+    private long demoted = 0;     // counts demote( ) calls
+    private long pending[];       // history of the block being loaded
+
+    public LruKPolicy( int pages, int k ) {
+	this.k = ( k > 1 ) ? k : 2;
+	history = new long[pages][];
+	blocks = new int[pages];
+	order = new TreeMap<Long, Integer>( );
+	keys = new long[pages];
+	retained = new LinkedHashMap<Integer, long[]>( );
+	for ( int i = 0; i < pages; i++ )
+	    keys[i] = NEVER;
+    }
+
+    // Pages short of k uses sort before all others, oldest last use first
+    private long keyOf( long uses[] ) {
+	if ( uses[k - 1] == NEVER )
+	    return NEVER + uses[0];
+	return uses[k - 1];
+    }
+
+    private void use( int page ) {
+	long uses[] = history[page];
+	System.arraycopy( uses, 0, uses, 1, k - 1 );
+	uses[0] = ++clock;
+	unorder( page );
+	keys[page] = keyOf( uses );
+	order.put( Long.valueOf( keys[page] ), Integer.valueOf( page ) );
+    }
+
+    // Takes page out of order, if its key there is still its own: a block
+    // that comes back brings its old keys along to another page
+    private void unorder( int page ) {
+	Long key = Long.valueOf( keys[page] );
+	Integer owner = order.get( key );
+	if ( owner != null && owner.intValue( ) == page )
+	    order.remove( key );
+    }
+
+    public void hit( int page ) {
+	use( page );
+    }
+
+    public void missed( int blockId ) {
+	pending = retained.remove( Integer.valueOf( blockId ) );
+	if ( pending == null ) {
+	    pending = new long[k];
+	    Arrays.fill( pending, NEVER );
+	}
+    }
+
+    public int victim( ) {
+	Map.Entry<Long, Integer> first = order.firstEntry( );
+	int page = first.getValue( ).intValue( );
+	order.remove( first.getKey( ) );
+	retained.put( Integer.valueOf( blocks[page] ), history[page] );
+	if ( retained.size( ) > history.length ) { // remember as many as fit
+	    Iterator<Integer> oldest = retained.keySet( ).iterator( );
+	    oldest.next( );
+	    oldest.remove( );
+	}
+	history[page] = null;
+	return page;
+    }
+
+    public void loaded( int page, int blockId ) {
+	blocks[page] = blockId;
+	history[page] = pending;
+	use( page );
+    }
+
+    public void released( int page ) {
+	unorder( page );
+	history[page] = null;
+    }
+
+    // ahead of every page, even those short of k uses, until it is used
+    public void demote( int page ) {
+	unorder( page );
+	keys[page] = NEVER - ++demoted;
+	order.put( Long.valueOf( keys[page] ), Integer.valueOf( page ) );
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*;
+
+// RAID-1: every Disk holds a full copy of the volume. A write goes to all
+// mirrors; a read goes to one mirror only, the one with the fewest queued
+// requests, and among those the one whose head is closest to the block.
+public class MirroredVolume extends DiskArray {
+    private int volumeSize;  // logical blocks
+
+    public MirroredVolume( int totalBlocks, int disks, boolean memoryMapped ) {
+	super( disks, copyMissingImages( disks, totalBlocks ), memoryMapped );
+	volumeSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+    }
+
+    // Mirrors must start out identical: an image that does not exist yet
+    // is copied from DISK0. Returns totalBlocks for the super constructor.
+    private static int copyMissingImages( int disks, int totalBlocks ) {
+	File first = new File( "DISK0" );
+	for ( int i = 1; i < disks && first.exists( ); i++ ) {
+	    File mirror = new File( "DISK" + i );
+	    if ( mirror.exists( ) )
+		continue;
+	    try {
+		FileInputStream in = new FileInputStream( first );
+		FileOutputStream out = new FileOutputStream( mirror );
+		byte[] chunk = new byte[ 64 * Disk.blockSize ];
+		int n;
+		while ( ( n = in.read( chunk ) ) > 0 )
+		    out.write( chunk, 0, n );
+		in.close( );
+		out.close( );
+		SysLib.cerr( "threadOS: DISK" + i + " copied from DISK0\n" );
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+	return totalBlocks;
+    }
+
+    public boolean readv( int blocks[], byte buffer[] ) {
+	if ( validVector( blocks, buffer, volumeSize ) == false )
+	    return false;
+	Request request = new Request( READ, buffer );
+	Part part = new Part( );
+	part.blocks = blocks;
+	part.buffer = buffer;  // read straight into the caller's buffer
+	request.parts[ nearestMirror( blocks[0] ) ] = part;
+	submit( request );
+	return true;
+    }
+
+    public boolean writev( int blocks[], byte buffer[] ) {
+	if ( validVector( blocks, buffer, volumeSize ) == false )
+	    return false;
+	Request request = new Request( WRITE, buffer );
+	Part part = new Part( );
+	part.blocks = blocks;
+	part.buffer = buffer;  // every mirror writes the same data
+	for ( int m = 0; m < members.length; m++ )
+	    request.parts[m] = part;
+	submit( request );
+	return true;
+    }
+
+    // The mirror with the shortest queue; ties go to the closest head
+    private int nearestMirror( int blockId ) {
+	int best = 0;
+	int bestDepth = members[0].getQueueDepth( );
+	int bestTracks = members[0].tracksTo( blockId );
+	for ( int m = 1; m < members.length; m++ ) {
+	    int depth = members[m].getQueueDepth( );
+	    int tracks = members[m].tracksTo( blockId );
+	    if ( depth < bestDepth ||
+		 ( depth == bestDepth && tracks < bestTracks ) ) {
+		best = m;
+		bestDepth = depth;
+		bestTracks = tracks;
+	    }
+	}
+	return best;
+    }
+}
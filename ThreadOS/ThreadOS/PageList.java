@@ -0,0 +1,72 @@
+// A doubly linked list of cache pages kept in two int arrays, so moving a
+// page to the front or unlinking it is O(1) and allocates nothing. The
+// front is the most recently used end. A page is on at most one list.
+public class PageList {
+    private int next[];
+    private int prev[];
+    private boolean member[];
+    private int head = -1;
+    private int tail = -1;
+    private int size = 0;
+
+    public PageList( int pages ) {
+	next = new int[pages];
+	prev = new int[pages];
+	member = new boolean[pages];
+    }
+
+    public int size( ) {
+	return size;
+    }
+
+    public boolean contains( int page ) {
+	return member[page];
+    }
+
+    public void addFirst( int page ) {
+	prev[page] = -1;
+	next[page] = head;
+	if ( head != -1 )
+	    prev[head] = page;
+	else
+	    tail = page;
+	head = page;
+	member[page] = true;
+	size++;
+    }
+
+    public void addLast( int page ) {
+	next[page] = -1;
+	prev[page] = tail;
+	if ( tail != -1 )
+	    next[tail] = page;
+	else
+	    head = page;
+	tail = page;
+	member[page] = true;
+	size++;
+    }
+
+    public void remove( int page ) {
+	if ( member[page] == false )
+	    return;
+	if ( prev[page] != -1 )
+	    next[ prev[page] ] = next[page];
+	else
+	    head = next[page];
+	if ( next[page] != -1 )
+	    prev[ next[page] ] = prev[page];
+	else
+	    tail = prev[page];
+	member[page] = false;
+	size--;
+    }
+
+    // Unlinks and returns the least recently used page, or -1 if empty
+    public int removeLast( ) {
+	int page = tail;
+	if ( page != -1 )
+	    remove( page );
+	return page;
+    }
+}
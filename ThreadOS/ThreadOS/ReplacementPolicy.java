@@ -0,0 +1,19 @@
+// Decides which Cache page gives way when a block misses and every page
+// is taken. The Cache tells its policy about every access:
+//   hit( page )             the block in page was used again
+//   missed( blockId )       blockId is not cached and is about to be
+//                           loaded; then, only if no page is free,
+//   victim( )               names the page to empty for it, and
+//   loaded( page, blockId ) reports where blockId went.
+//   released( page )        page was emptied outside replacement
+//   demote( page )          the block in page will not be used again
+//                           soon: make it an early victim
+// Pages are numbered 0 .. pages - 1. Cache.createPolicy builds one by name.
+public interface ReplacementPolicy {
+    public void hit( int page );
+    public void missed( int blockId );
+    public int victim( );
+    public void loaded( int page, int blockId );
+    public void released( int page );
+    public void demote( int page );
+}
@@ -46,12 +46,16 @@ public class Scheduler extends Thread
     // A new feature added to p161 
     // Retrieve the current thread's TCB from the queue
     public TCB getMyTcb( ) {
-	Thread myThread = Thread.currentThread( ); // Get my thread object
+	return getTcb( Thread.currentThread( ) ); // Get my thread object
+    }
+
+    // Retrieve a given thread's TCB from the queue
+    public TCB getTcb( Thread myThread ) {
 	synchronized( queue ) {
 	    for ( int i = 0; i < queue.size( ); i++ ) {
 		TCB tcb = ( TCB )queue.elementAt( i );
 		Thread thread = tcb.getThread( );
-		if ( thread == myThread ) // if this is my TCB, return it
+		if ( thread == myThread ) // if this is its TCB, return it
 		    return tcb;
 	    }
 	}
@@ -84,11 +88,49 @@ public class Scheduler extends Thread
 	initTid( maxThreads );
     }
 
+    // A time slice. Under the virtual clock it is charged to the SimClock;
+    // a slice in which the scheduler has nothing to start or reap is only
+    // a tick, which does not move the clock by itself.
     private void schedulerSleep( ) {
-	try {
-	    Thread.sleep( timeSlice );
-	} catch ( InterruptedException e ) {
+	if ( SimClock.isVirtual( ) && hasWork( ) == false )
+	    SimClock.tick( timeSlice );
+	else
+	    SimClock.delay( timeSlice );
+    }
+
+    // Whether a thread waits to be started or reaped
+    private boolean hasWork( ) {
+	synchronized ( queue ) {
+	    for ( int i = 0; i < queue.size( ); i++ ) {
+		TCB tcb = ( TCB )queue.elementAt( i );
+		Thread thread = tcb.getThread( );
+		if ( tcb.getTerminated( ) ||
+		     ( thread != null && thread.getState( ) == Thread.State.NEW ) )
+		    return true;
+	    }
 	}
+	return false;
+    }
+
+    // Sleeps while there is no thread to run
+    private void waitForThreads( ) {
+	synchronized ( queue ) {
+	    while ( queue.size( ) == 0 ) {
+		SimClock.block( queue );
+		try {
+		    queue.wait( );
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	}
+	SimClock.resume( );
+    }
+
+    // The scheduler takes part in the virtual clock's simulation, and so
+    // does every thread it starts
+    public void start( ) {
+	SimClock.attach( this );
+	super.start( );
     }
 
     // A modified addThread of p161 example
@@ -100,7 +142,21 @@ public class Scheduler extends Thread
 	if ( tid == -1)
 	    return null;
 	TCB tcb = new TCB( t, tid, pid ); // create a new TCB
-	queue.add( tcb );
+
+	// the child inherits its parent's open files
+	if ( parentTcb != null ) {
+	    for ( int i = 0; i < 32; i++ ) {
+		tcb.ftEnt[i] = parentTcb.ftEnt[i];
+		if ( tcb.ftEnt[i] != null )
+		    tcb.ftEnt[i].count++;
+	    }
+	}
+
+	synchronized ( queue ) {
+	    queue.add( tcb );
+	    SimClock.wake( this, queue ); // it has a thread to start
+	    queue.notifyAll( );
+	}
 	return tcb;
     }
 
@@ -108,16 +164,21 @@ public class Scheduler extends Thread
     // Removing the TCB of a terminating thread
     public boolean deleteThread( ) {
 	TCB tcb = getMyTcb( ); 
-	if ( tcb!= null )
-	    return tcb.setTerminated( );
-	else
+	if ( tcb == null )
 	    return false;
+
+	// close the files the thread left open
+	for ( int i = 3; i < 32; i++ )
+	    if ( tcb.ftEnt[i] != null )
+		SysLib.close( i );
+	boolean terminated = tcb.setTerminated( );
+	SimClock.wake( this, queue ); // it has a thread to reap
+	SimClock.detach( );
+	return terminated;
     }
 
     public void sleepThread( int milliseconds ) {
-	try {
-	    sleep( milliseconds );
-	} catch ( InterruptedException e ) { }
+	SimClock.delay( milliseconds );
     }
     
     // A modified run of p161
@@ -129,12 +190,21 @@ public class Scheduler extends Thread
 	while ( true ) {
 	    try {
 		// get the next TCB and its thrad
-		if ( queue.size( ) == 0 )
+		if ( queue.size( ) == 0 ) {
+		    waitForThreads( );
 		    continue;
+		}
 		TCB currentTCB = (TCB)queue.firstElement( );
 		if ( currentTCB.getTerminated( ) == true ) {
 		    queue.remove( currentTCB );
 		    returnTid( currentTCB.getTid( ) );
+		    if ( SimClock.isVirtual( ) )
+			System.err.println( "threadOS: thread tid=" +
+					    currentTCB.getTid( ) + 
+					    " turnaround=" + 
+					    ( currentTCB.getExitTime( ) - 
+					      currentTCB.getSubmitTime( ) ) +
+					    "ms" );
 		    continue;
 		}
 		current = currentTCB.getThread( );
@@ -144,6 +214,7 @@ public class Scheduler extends Thread
 		    else {
 			// Spawn must be controlled by Scheduler
 			// Scheduler must start a new thread
+			SimClock.attach( current );
 			current.start( ); 
 			current.setPriority( 4 );
 		    }
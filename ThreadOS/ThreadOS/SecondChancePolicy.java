@@ -0,0 +1,39 @@
+// The Cache's original replacement: a clock hand sweeps the pages, and a
+// page whose reference bit is set loses the bit instead of its block.
+public class SecondChancePolicy implements ReplacementPolicy {
+    private boolean reference[];
+    private int victim;  // where the hand stopped last
+
+    public SecondChancePolicy( int pages ) {
+	reference = new boolean[pages];
+	victim = pages - 1;
+    }
+
+    public void hit( int page ) {
+	reference[page] = true;
+    }
+
+    public void missed( int blockId ) {
+    }
+
+    public int victim( ) {
+	while ( true ) {
+	    victim = ( victim + 1 ) % reference.length;
+	    if ( reference[victim] == false )
+		return victim;
+	    reference[victim] = false;
+	}
+    }
+
+    public void loaded( int page, int blockId ) {
+	reference[page] = true;
+    }
+
+    public void released( int page ) {
+	reference[page] = false;
+    }
+
+    public void demote( int page ) {
+	reference[page] = false;
+    }
+}
@@ -0,0 +1,292 @@
+import java.util.*;
+
+// The clock ThreadOS measures modeled time with.
+//
+// By default it follows the wall clock and delay( ) really sleeps. Booting
+// with java -Dthreados.clock=virtual Boot switches to simulated time: one
+// clock for everybody, stepped in event order. Disk seeks, sleeps and
+// time slices thus cost no wall time, work on different disks overlaps
+// instead of adding up, and a run reports the same times every time.
+//
+// The threads taking part are attached: the scheduler and the threads it
+// runs, the disks, the cache's flusher and prefetcher. They take turns,
+// one at a time, so what they do at the same virtual instant always
+// happens in the same order. A thread keeps its turn until it waits, and
+// then the next ready thread gets it, in the order they became ready.
+// Only when no thread is ready does the clock move: straight to the
+// earliest deadline a delay( ) waits for.
+//
+// So every wait of an attached thread is announced. It calls block( on )
+// before it waits on the monitor on, and the thread that notifies on
+// calls wake( t, on ) first; after the wait, resume( ) waits for its turn.
+// A wake( ) naming another monitor than the one t waits on is ignored:
+// t would not see the notify, and with the turn it could not use nobody
+// else could run.
+// delay( ) waits for a deadline, and settle( ) until no other thread is
+// ready, which lets a disk pick its next request only once all requests
+// of the current instant are in. A lock that is held while its owner
+// waits is a SimLock, which announces its waits the same way.
+public class SimClock {
+    private static final boolean virtual
+	= "virtual".equalsIgnoreCase( System.getProperty( "threados.clock" ) );
+    private static final long start = System.currentTimeMillis( );
+
+    // What an attached thread (or one in delay( )) is doing
+    private static class Waiter {
+	Thread thread;
+	boolean attached;       // false: only here for a delay( )
+	long rank;              // the order it was attached in
+	boolean ready;          // has work to do, wants the turn
+	Object blockedOn;       // the monitor it waits on after block( )
+	boolean settling;       // in settle( )
+	long deadline = -1;     // in delay( ) until then
+	boolean idle;           // the deadline of a tick( ) nobody woke
+    }
+
+    private static long now = 0;       // virtual milliseconds since boot
+    private static Hashtable<Thread, Waiter> threads =
+	new Hashtable<Thread, Waiter>( );
+    private static Vector<Waiter> ready = new Vector<Waiter>( );
+    private static Thread turn = null; // the attached thread that runs
+    private static long attached = 0;  // threads attached so far
+
+    public static boolean isVirtual( ) {
+	return virtual;
+    }
+
+    // Milliseconds since boot, simulated or real
+    public static synchronized long now( ) {
+	return virtual ? now : System.currentTimeMillis( ) - start;
+    }
+
+    // Lets t take part in the simulation, as a ready thread. Call it
+    // before t starts, so the clock cannot move past the work t is about
+    // to do; t gets its turn at its first announced wait or resume( ).
+    public static synchronized void attach( Thread t ) {
+	if ( virtual == false || threads.containsKey( t ) )
+	    return;
+	Waiter w = new Waiter( );
+	w.thread = t;
+	w.attached = true;
+	w.rank = attached++;
+	threads.put( t, w );
+	makeReady( w );
+	dispatch( );
+    }
+
+    // The calling thread is done taking part
+    public static synchronized void detach( ) {
+	if ( virtual == false )
+	    return;
+	Thread me = Thread.currentThread( );
+	Waiter w = threads.get( me );
+	if ( w == null || w.attached == false )
+	    return;
+	threads.remove( me );
+	ready.remove( w );
+	pass( me );
+    }
+
+    // The calling thread is about to wait on the monitor on until another
+    // thread wakes it
+    public static synchronized void block( Object on ) {
+	if ( virtual == false )
+	    return;
+	Thread me = Thread.currentThread( );
+	Waiter w = threads.get( me );
+	if ( w == null || w.attached == false )
+	    return;
+	w.blockedOn = on;
+	w.ready = false;
+	ready.remove( w );
+	pass( me );
+    }
+
+    // t, waiting on the monitor on, has work to do again, and runs on its
+    // next turn; call it before notifying on. A thread in tick( ) stays
+    // there, but its deadline now keeps the clock going.
+    public static synchronized void wake( Thread t, Object on ) {
+	if ( virtual == false || t == null )
+	    return;
+	Waiter w = threads.get( t );
+	if ( w == null || w.attached == false || w.ready || w.settling ||
+	     turn == t )
+	    return;
+	if ( w.deadline >= 0 ) {
+	    w.idle = false;
+	    return;
+	}
+	if ( w.blockedOn != on ) // busy elsewhere: it sees on when it is done
+	    return;
+	makeReady( w );
+	dispatch( );
+    }
+
+    // The calling thread goes on: it waits for its turn, first becoming
+    // ready if nobody woke it (a wait outside the simulation is over).
+    // Holding the turn already, it returns at once.
+    public static void resume( ) {
+	if ( virtual == false )
+	    return;
+	synchronized ( SimClock.class ) {
+	    Thread me = Thread.currentThread( );
+	    Waiter w = threads.get( me );
+	    if ( w == null || w.attached == false || turn == me )
+		return;
+	    if ( w.ready == false ) {
+		makeReady( w );
+		dispatch( );
+	    }
+	    awaitTurn( me );
+	}
+    }
+
+    // Waits until no other attached thread is ready
+    public static void settle( ) {
+	if ( virtual == false )
+	    return;
+	synchronized ( SimClock.class ) {
+	    Thread me = Thread.currentThread( );
+	    Waiter w = threads.get( me );
+	    if ( w == null || w.attached == false )
+		return;
+	    w.ready = false;
+	    ready.remove( w );
+	    w.settling = true;
+	    pass( me );
+	    awaitTurn( me );
+	}
+    }
+
+    // The caller is busy for a modeled number of milliseconds
+    public static void delay( long milliseconds ) {
+	if ( virtual == false ) {
+	    try {
+		Thread.sleep( milliseconds );
+	    } catch ( InterruptedException e ) {
+	    }
+	    return;
+	}
+	waitFor( milliseconds, false );
+    }
+
+    // A delay( ) for a periodic timer: while nobody wakes the caller, its
+    // deadline alone does not move the clock, so a system waiting for the
+    // keyboard does not race through time. Real time just sleeps.
+    public static void tick( long milliseconds ) {
+	if ( virtual == false ) {
+	    delay( milliseconds );
+	    return;
+	}
+	waitFor( milliseconds, true );
+    }
+
+    private static synchronized void waitFor( long milliseconds,
+					     boolean idle ) {
+	Thread me = Thread.currentThread( );
+	Waiter w = threads.get( me );
+	if ( w == null ) { // not attached: wait without holding time up
+	    w = new Waiter( );
+	    w.thread = me;
+	    threads.put( me, w );
+	}
+	w.ready = false;
+	ready.remove( w );
+	w.deadline = now + Math.max( milliseconds, 0 );
+	w.idle = idle;
+	if ( w.attached == false ) {
+	    dispatch( );
+	    while ( w.deadline >= 0 )
+		sleep( );
+	    threads.remove( me );
+	    return;
+	}
+	pass( me );
+	awaitTurn( me );
+    }
+
+    private static void makeReady( Waiter w ) {
+	w.blockedOn = null;
+	w.ready = true;
+	ready.add( w );
+    }
+
+    // me waits from now on: if it had the turn, the next thread gets it
+    private static void pass( Thread me ) {
+	if ( turn == me ) {
+	    turn = null;
+	    dispatch( );
+	}
+    }
+
+    private static void awaitTurn( Thread me ) {
+	while ( turn != me )
+	    sleep( );
+    }
+
+    private static void sleep( ) {
+	try {
+	    SimClock.class.wait( );
+	} catch ( InterruptedException e ) {
+	}
+    }
+
+    // Gives a free turn to the first ready thread. With none, the settling
+    // threads go first, one at a time by rank, since they act at the
+    // current instant; with none of those either, the clock moves to the
+    // earliest deadline and the threads waiting for it become ready, by
+    // rank. A deadline only idle ticks wait for does not move it.
+    private static void dispatch( ) {
+	while ( turn == null ) {
+	    if ( ready.size( ) > 0 ) {
+		Waiter w = ready.remove( 0 );
+		w.ready = false;
+		turn = w.thread;
+		break;
+	    }
+	    Waiter settler = null;
+	    long next = -1;
+	    boolean busy = false;
+	    for ( Enumeration<Waiter> e = threads.elements( );
+		  e.hasMoreElements( ); ) {
+		Waiter w = e.nextElement( );
+		if ( w.settling ) {
+		    if ( settler == null || w.rank < settler.rank )
+			settler = w;
+		} else if ( w.deadline >= 0 ) {
+		    if ( next < 0 || w.deadline < next )
+			next = w.deadline;
+		    if ( w.idle == false )
+			busy = true;
+		}
+	    }
+	    if ( settler != null ) {
+		settler.settling = false;
+		turn = settler.thread;
+		break;
+	    }
+	    if ( busy == false )
+		break; // everybody waits for something outside the simulation
+	    now = next;
+	    Vector<Waiter> due = new Vector<Waiter>( );
+	    for ( Enumeration<Waiter> e = threads.elements( );
+		  e.hasMoreElements( ); ) {
+		Waiter w = e.nextElement( );
+		if ( w.deadline == next ) {
+		    int at = due.size( );
+		    while ( at > 0 && due.elementAt( at - 1 ).rank > w.rank )
+			at--;
+		    due.add( at, w );
+		}
+	    }
+	    for ( int i = 0; i < due.size( ); i++ ) {
+		Waiter w = due.elementAt( i );
+		w.deadline = -1;
+		w.idle = false;
+		if ( w.attached )
+		    makeReady( w );
+	    }
+	}
+	SimClock.class.notifyAll( );
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.*;
+
+// A reentrant lock for kernel state that stays locked while its owner
+// waits for the disk: a cache segment, an open file, the file table.
+// Under the virtual clock a thread stuck on a plain monitor would keep the
+// SimClock waiting for it, so SimLock announces its waits there (see
+// SimClock) and hands itself to its waiters in the order they came, which
+// keeps the order of a virtual run fixed. It has one condition, like a
+// monitor: await( ), signal( ) and signalAll( ).
+public class SimLock {
+    private Thread owner = null;
+    private int holds = 0;
+    private Vector<Thread> waiters = new Vector<Thread>( );  // for the lock
+    private Vector<Thread> sleepers = new Vector<Thread>( ); // in await( )
+
+    public void lock( ) {
+	Thread me = Thread.currentThread( );
+	synchronized ( this ) {
+	    if ( owner == null || owner == me ) {
+		owner = me;
+		holds++;
+		return;
+	    }
+	    waiters.add( me );
+	    sleep( me );
+	    holds++;
+	}
+	SimClock.resume( );
+    }
+
+    public synchronized void unlock( ) {
+	if ( owner != Thread.currentThread( ) )
+	    throw new IllegalMonitorStateException( );
+	if ( --holds == 0 )
+	    handOff( );
+    }
+
+    // Releases the lock until signal( ) or signalAll( ), then takes it
+    // back as often as it was held
+    public void await( ) {
+	Thread me = Thread.currentThread( );
+	synchronized ( this ) {
+	    if ( owner != me )
+		throw new IllegalMonitorStateException( );
+	    int held = holds;
+	    holds = 0;
+	    sleepers.add( me );
+	    handOff( );
+	    sleep( me );
+	    holds = held;
+	}
+	SimClock.resume( );
+    }
+
+    // Lets the longest sleeping thread in await( ) take the lock once it
+    // is free
+    public synchronized void signal( ) {
+	if ( sleepers.size( ) > 0 )
+	    waiters.add( sleepers.remove( 0 ) );
+    }
+
+    // The same for all of them
+    public synchronized void signalAll( ) {
+	waiters.addAll( sleepers );
+	sleepers.clear( );
+    }
+
+    // Gives the lock to the first waiter, or frees it
+    private void handOff( ) {
+	if ( waiters.size( ) == 0 ) {
+	    owner = null;
+	    return;
+	}
+	owner = waiters.remove( 0 );
+	SimClock.wake( owner, this );
+	notifyAll( );
+    }
+
+    private void sleep( Thread me ) {
+	SimClock.block( this );
+	while ( owner != me ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+	    }
+	}
+    }
+}
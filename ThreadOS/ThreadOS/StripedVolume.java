@@ -0,0 +1,74 @@
+// RAID-0: logical blocks are spread round-robin, stripeUnit blocks at a
+// time, across several Disks. A large request is split into one part per
+// Disk and the parts are served in parallel.
+public class StripedVolume extends DiskArray {
+    private int stripeUnit;  // consecutive blocks kept on one disk
+    private int volumeSize;  // logical blocks
+
+    public StripedVolume( int totalBlocks, int disks, int stripeUnit,
+			  boolean memoryMapped ) {
+	// every member holds the same number of whole stripe units
+	super( disks, memberSize( totalBlocks, disks, stripeUnit ),
+	       memoryMapped );
+	this.stripeUnit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	volumeSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+    }
+
+    private static int memberSize( int totalBlocks, int disks, int unit ) {
+	unit = ( unit > 0 ) ? unit : 1;
+	int units = ( Math.max( totalBlocks, 1 ) + unit - 1 ) / unit;
+	return ( units + disks - 1 ) / disks * unit;
+    }
+
+    private int memberOf( int blockId ) {
+	return ( blockId / stripeUnit ) % members.length;
+    }
+
+    private int memberBlock( int blockId ) {
+	return ( blockId / stripeUnit ) / members.length * stripeUnit
+	    + blockId % stripeUnit;
+    }
+
+    public boolean readv( int blocks[], byte buffer[] ) {
+	return split( READ, blocks, buffer );
+    }
+
+    public boolean writev( int blocks[], byte buffer[] ) {
+	return split( WRITE, blocks, buffer );
+    }
+
+    private boolean split( int command, int blocks[], byte buffer[] ) {
+	if ( validVector( blocks, buffer, volumeSize ) == false )
+	    return false;
+
+	// count each member's share
+	int counts[] = new int[ members.length ];
+	for ( int i = 0; i < blocks.length; i++ )
+	    counts[ memberOf( blocks[i] ) ]++;
+
+	Request request = new Request( command, buffer );
+	for ( int m = 0; m < members.length; m++ ) {
+	    if ( counts[m] == 0 )
+		continue;
+	    Part part = new Part( );
+	    part.indexes = new int[ counts[m] ];
+	    part.blocks = new int[ counts[m] ];
+	    part.buffer = BlockPool.get( counts[m] ); // back in partFinished
+	    request.parts[m] = part;
+	    counts[m] = 0; // reused as the fill position
+	}
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    int m = memberOf( blocks[i] );
+	    Part part = request.parts[m];
+	    int k = counts[m]++;
+	    part.indexes[k] = i;
+	    part.blocks[k] = memberBlock( blocks[i] );
+	    if ( command == WRITE )
+		System.arraycopy( buffer, i * Disk.blockSize,
+				  part.buffer, k * Disk.blockSize,
+				  Disk.blockSize );
+	}
+	submit( request );
+	return true;
+    }
+}
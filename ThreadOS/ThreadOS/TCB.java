@@ -4,6 +4,8 @@ public class TCB {
     private int pid = 0;
     private boolean terminated = false;
     private int sleepTime = 0;
+    private long submitTime = 0; // SimClock time this thread was created
+    private long exitTime = 0;   // SimClock time it terminated at
     public FileTableEntry[] ftEnt = null; // added for the file system
 
     public TCB( Thread newThread, int myTid, int parentTid ) {
@@ -11,6 +13,7 @@ public class TCB {
 	tid = myTid;
 	pid = parentTid;
 	terminated = false;
+	submitTime = SimClock.now( );
 
 	ftEnt = new FileTableEntry[32];    // added for the file system
 
@@ -33,9 +36,18 @@ public class TCB {
 
     public synchronized boolean setTerminated( ) {
 	terminated = true;
+	exitTime = SimClock.now( ); // called by the thread itself
 	return terminated;
     }
 
+    public synchronized long getSubmitTime( ) {
+	return submitTime;
+    }
+
+    public synchronized long getExitTime( ) {
+	return exitTime;
+    }
+
     public synchronized boolean getTerminated( ) {
 	return terminated;
     }
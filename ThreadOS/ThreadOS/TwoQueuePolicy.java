@@ -0,0 +1,71 @@
+import java.util.*;
+
+// 2Q (Johnson and Shasha). A block seen for the first time goes on the
+// FIFO a1in; only a block that comes back after falling out of a1in,
+// which the ghost FIFO a1out remembers by id, is admitted to the LRU list
+// am. A one-shot scan therefore cycles through a1in and leaves the hot
+// blocks in am alone.
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private PageList a1in;        // resident, first use, FIFO
+    private PageList am;          // resident, reused, LRU
+    private LinkedHashSet<Integer> a1out; // ids of blocks evicted from a1in
+    private int blocks[];         // block held by each page
+    private int kin;              // a1in's share of the pages
+    private int kout;             // ghosts remembered
+    private boolean reused;       // the missing block is in a1out
+
+    public TwoQueuePolicy( int pages ) {
+	a1in = new PageList( pages );
+	am = new PageList( pages );
+	a1out = new LinkedHashSet<Integer>( );
+	blocks = new int[pages];
+	kin = Math.max( pages / 4, 1 );
+	kout = Math.max( pages / 2, 1 );
+    }
+
+    public void hit( int page ) {
+	if ( am.contains( page ) ) {
+	    am.remove( page );
+	    am.addFirst( page );
+	}
+	// a hit in a1in does not promote: it may be the same scan again
+    }
+
+    public void missed( int blockId ) {
+	reused = a1out.remove( Integer.valueOf( blockId ) );
+    }
+
+    public int victim( ) {
+	if ( a1in.size( ) > kin || am.size( ) == 0 ) {
+	    int page = a1in.removeLast( );
+	    a1out.add( Integer.valueOf( blocks[page] ) );
+	    if ( a1out.size( ) > kout ) {
+		Iterator<Integer> oldest = a1out.iterator( );
+		oldest.next( );
+		oldest.remove( );
+	    }
+	    return page;
+	}
+	return am.removeLast( );
+    }
+
+    public void loaded( int page, int blockId ) {
+	blocks[page] = blockId;
+	if ( reused )
+	    am.addFirst( page );
+	else
+	    a1in.addFirst( page );
+    }
+
+    public void released( int page ) {
+	a1in.remove( page );
+	am.remove( page );
+    }
+
+    // to the end of a1in, which goes first while a1in is over its share
+    public void demote( int page ) {
+	a1in.remove( page );
+	am.remove( page );
+	a1in.addLast( page );
+    }
+}